@@ -0,0 +1,137 @@
+package dk.dbc.httpclient;
+
+import jakarta.ws.rs.core.Response;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publisher of the body of a response in chunks, read on demand of its subscriber
+ * so that the body is never buffered as a whole.
+ * <p>
+ * The body is read as an entity stream, which means that it is decompressed if compression
+ * is enabled on the client. Each chunk holds what was available from the stream up to
+ * the chunk size. The response is closed when the body has been published, on failure
+ * and on cancellation. The publisher supports a single subscriber.
+ * </p>
+ * @see HttpClient#bodyPublisher(Response, int, Executor)
+ */
+class BodyPublisher implements Flow.Publisher<ByteBuffer> {
+    private final Response response;
+    private final int chunkSize;
+    private final Executor executor;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    BodyPublisher(Response response, int chunkSize, Executor executor) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        this.response = response;
+        this.chunkSize = chunkSize;
+        this.executor = executor;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {}
+
+                @Override
+                public void cancel() {}
+            });
+            subscriber.onError(new IllegalStateException("Publisher supports a single subscriber"));
+            return;
+        }
+        subscriber.onSubscribe(new Subscription(subscriber));
+    }
+
+    private class Subscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super ByteBuffer> subscriber;
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile boolean cancelled;
+        private volatile Throwable invalidRequest;
+        private InputStream body;
+        private boolean terminated;
+
+        Subscription(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("Non-positive request " + n);
+            } else {
+                requested.accumulateAndGet(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+            }
+            if (wip.getAndIncrement() == 0) {
+                executor.execute(this::readLoop);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            close();
+        }
+
+        // Only one read loop is running at a time, demand arriving meanwhile makes it loop again
+        private void readLoop() {
+            do {
+                try {
+                    while (!terminated && !cancelled) {
+                        if (invalidRequest != null) {
+                            terminate(invalidRequest);
+                        } else if (requested.get() == 0) {
+                            break;
+                        } else {
+                            readChunk();
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    if (!cancelled) {
+                        terminate(e);
+                    }
+                }
+            } while (wip.decrementAndGet() != 0);
+        }
+
+        private void readChunk() throws IOException {
+            if (body == null) {
+                body = response.readEntity(InputStream.class);
+            }
+            final byte[] chunk = new byte[chunkSize];
+            final int n = body.read(chunk);
+            if (n < 0) {
+                terminated = true;
+                close();
+                subscriber.onComplete();
+            } else if (n > 0) {
+                requested.decrementAndGet();
+                subscriber.onNext(ByteBuffer.wrap(chunk, 0, n));
+            }
+        }
+
+        private void terminate(Throwable cause) {
+            terminated = true;
+            close();
+            subscriber.onError(cause);
+        }
+
+        private void close() {
+            if (closed.compareAndSet(false, true)) {
+                response.close();
+            }
+        }
+    }
+}
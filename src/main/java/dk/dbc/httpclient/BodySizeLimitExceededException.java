@@ -0,0 +1,20 @@
+package dk.dbc.httpclient;
+
+import jakarta.ws.rs.ProcessingException;
+
+/**
+ * Exception thrown when a response body exceeds the configured maximum size,
+ * either as received or after decompression.
+ */
+public class BodySizeLimitExceededException extends ProcessingException {
+    private final long maxSize;
+
+    public BodySizeLimitExceededException(String message, long maxSize) {
+        super(message + " exceeds limit of " + maxSize + " bytes");
+        this.maxSize = maxSize;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+}
@@ -0,0 +1,55 @@
+package dk.dbc.httpclient;
+
+import jakarta.annotation.Priority;
+import jakarta.ws.rs.Priorities;
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.ext.ReaderInterceptor;
+import jakarta.ws.rs.ext.ReaderInterceptorContext;
+
+import java.io.IOException;
+
+/**
+ * Interceptor that limits the size of the response body as received.
+ * Reading is aborted with a {@link BodySizeLimitExceededException} as soon as the limit is exceeded,
+ * or before reading at all if the Content-Length header announces a body which is too large.
+ *
+ * The limits are given by the request properties {@link #MAX_COMPRESSED_BODY_SIZE} and
+ * {@link #MAX_DECOMPRESSED_BODY_SIZE}, the latter being enforced by the {@link DecompressionInterceptor}
+ * for compressed bodies and by this interceptor for bodies that are not compressed.
+ *
+ * @see HttpClient#withMaxCompressedBodySize(long)
+ * @see HttpClient#withMaxDecompressedBodySize(long)
+ */
+@Priority(Priorities.ENTITY_CODER)
+public class BodySizeLimitInterceptor implements ReaderInterceptor {
+    public static final String MAX_COMPRESSED_BODY_SIZE = "dk.dbc.httpclient.maxCompressedBodySize";
+    public static final String MAX_DECOMPRESSED_BODY_SIZE = "dk.dbc.httpclient.maxDecompressedBodySize";
+
+    @Override
+    public Object aroundReadFrom(ReaderInterceptorContext context) throws IOException, WebApplicationException {
+        long maxSize = getMaxSize(context, MAX_COMPRESSED_BODY_SIZE);
+        if (context.getHeaders().getFirst("Content-Encoding") == null) {
+            maxSize = Math.min(maxSize, getMaxSize(context, MAX_DECOMPRESSED_BODY_SIZE));
+        }
+        if (maxSize == Long.MAX_VALUE) return context.proceed();
+        final String contentLength = context.getHeaders().getFirst("Content-Length");
+        if (contentLength != null && parseLength(contentLength) > maxSize) {
+            throw new BodySizeLimitExceededException("Response body of Content-Length " + contentLength, maxSize);
+        }
+        context.setInputStream(new BoundedInputStream(context.getInputStream(), maxSize, "Response body"));
+        return context.proceed();
+    }
+
+    static long getMaxSize(ReaderInterceptorContext context, String property) {
+        final Object value = context.getProperty(property);
+        return value instanceof Number ? ((Number) value).longValue() : Long.MAX_VALUE;
+    }
+
+    private static long parseLength(String contentLength) {
+        try {
+            return Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
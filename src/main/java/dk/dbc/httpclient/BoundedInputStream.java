@@ -0,0 +1,58 @@
+package dk.dbc.httpclient;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream counting the bytes read and aborting with a {@link BodySizeLimitExceededException}
+ * as soon as more than the maximum number of bytes have been read
+ */
+class BoundedInputStream extends FilterInputStream {
+    private final long maxSize;
+    private final String description;
+    private long count;
+
+    BoundedInputStream(InputStream in, long maxSize, String description) {
+        super(in);
+        this.maxSize = maxSize;
+        this.description = description;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final int b = super.read();
+        if (b >= 0) {
+            count(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        final int n = super.read(b, off, len);
+        if (n > 0) {
+            count(n);
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        final long skipped = super.skip(n);
+        count(skipped);
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void count(long n) {
+        count += n;
+        if (count > maxSize) {
+            throw new BodySizeLimitExceededException(description, maxSize);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package dk.dbc.httpclient;
+
+import dk.dbc.commons.useragent.UserAgent;
+import jakarta.ws.rs.client.Client;
+import jakarta.ws.rs.core.Response;
+import net.jodah.failsafe.RetryPolicy;
+import org.glassfish.jersey.client.ClientConfig;
+
+import java.util.function.Supplier;
+
+/**
+ * Registry sharing one web resources client, and thereby its connection pool and threads,
+ * between many {@link HttpClient} and {@link FailSafeHttpClient} instances with different
+ * user agents, retry policies and settings.
+ * <p>
+ * Each HTTP client gets a handle of its own to the shared client. Closing a handle, e.g. by
+ * {@link HttpClient#closeClient(Client)}, releases its reference, and the shared client is only
+ * closed when the last handle has been closed. A client acquired after that creates a new shared client.
+ * </p>
+ * <p>
+ * Settings of an HTTP client, such as compression, timeouts, body size limits, leak detection and disk caching,
+ * are carried by request properties and stay private to it, while providers and properties registered directly
+ * on the shared client apply to all HTTP clients sharing it.
+ * </p>
+ * <pre>
+ * {@code
+ * final ClientRegistry registry = new ClientRegistry();
+ * final HttpClient httpClient = registry.newHttpClient(UserAgent.forInternalRequests());
+ * final FailSafeHttpClient failSafeHttpClient = registry.newFailSafeHttpClient(
+ *          UserAgent.forExternalRequests(), retryPolicy);
+ * ...
+ * HttpClient.closeClient(httpClient.getClient());
+ * HttpClient.closeClient(failSafeHttpClient.getClient());
+ * }
+ * </pre>
+ */
+public class ClientRegistry {
+    private final Supplier<Client> clientFactory;
+    // Guarded by this
+    private Client client;
+    private int references;
+
+    /**
+     * Creates registry sharing a client with default configuration
+     */
+    public ClientRegistry() {
+        this(HttpClient::newClient);
+    }
+
+    /**
+     * Creates registry sharing a client with given configuration
+     * @param config the client config
+     */
+    public ClientRegistry(ClientConfig config) {
+        this(() -> HttpClient.newClient(config));
+    }
+
+    /**
+     * @param clientFactory factory of the shared client
+     * @throws NullPointerException if given null-valued clientFactory
+     */
+    public ClientRegistry(Supplier<Client> clientFactory) throws NullPointerException {
+        if (clientFactory == null) {
+            throw new NullPointerException("clientFactory can not be null");
+        }
+        this.clientFactory = clientFactory;
+    }
+
+    /**
+     * Acquires handle of the shared client, creating the shared client if not open
+     * @return client handle, to be closed when no longer used
+     */
+    public synchronized Client acquire() {
+        if (client == null) {
+            client = clientFactory.get();
+        }
+        references++;
+        return new SharedClient(client, this);
+    }
+
+    /**
+     * @param userAgent user agent to be used in requests
+     * @return new HTTP client using a handle of the shared client
+     */
+    public HttpClient newHttpClient(UserAgent userAgent) {
+        return HttpClient.create(acquire(), userAgent);
+    }
+
+    /**
+     * @param userAgent user agent to be used in requests
+     * @param retryPolicy retry policy
+     * @return new fail-safe HTTP client using a handle of the shared client
+     */
+    public FailSafeHttpClient newFailSafeHttpClient(UserAgent userAgent, RetryPolicy<Response> retryPolicy) {
+        return FailSafeHttpClient.create(acquire(), userAgent, retryPolicy);
+    }
+
+    /**
+     * @return number of open handles of the shared client
+     */
+    public synchronized int getReferences() {
+        return references;
+    }
+
+    synchronized void release(Client released) {
+        if (released != client) {
+            return;
+        }
+        if (--references == 0) {
+            client = null;
+            released.close();
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package dk.dbc.httpclient;
+
+import jakarta.ws.rs.client.ClientRequestContext;
+import jakarta.ws.rs.client.ClientResponseContext;
+import jakarta.ws.rs.client.ClientResponseFilter;
+
+/**
+ * Filter releasing the connection held by a request, given by the request property {@link #CONNECTION_LEASE},
+ * when the entity stream of the response is closed or fully read, or immediately if the response has no entity
+ *
+ * @see HttpClient#withConnectionStats(ConnectionStats)
+ * @see HttpClient#withMaxConnectionsPerHost(int)
+ */
+public class ConnectionFilter implements ClientResponseFilter {
+    public static final String CONNECTION_LEASE = "dk.dbc.httpclient.connectionLease";
+
+    @Override
+    public void filter(ClientRequestContext requestContext, ClientResponseContext responseContext) {
+        final Object lease = requestContext.getProperty(CONNECTION_LEASE);
+        if (lease instanceof ConnectionLease) {
+            if (responseContext.hasEntity()) {
+                responseContext.setEntityStream(((ConnectionLease) lease).releaseOnClose(responseContext.getEntityStream()));
+            } else {
+                ((ConnectionLease) lease).release();
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package dk.dbc.httpclient;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Connection to a host held by a request from the start of the request until its response
+ * is closed or its entity fully read, at which point the connector returns the connection to its pool
+ */
+final class ConnectionLease {
+    private final String host;
+    private final ConnectionLimiter connectionLimiter;
+    private final Duration priorityAging;
+    private final HostStats hostStats;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    private ConnectionLease(String host, ConnectionLimiter connectionLimiter, Duration priorityAging,
+                            HostStats hostStats) {
+        this.host = host;
+        this.connectionLimiter = connectionLimiter;
+        this.priorityAging = priorityAging;
+        this.hostStats = hostStats;
+    }
+
+    /**
+     * Acquires a connection for given request, waiting for one if the number of connections is limited
+     * @param request request
+     * @param connectionLimiter connection limiter (can be null)
+     * @param priorityAging time after which a waiting request is raised one level in priority
+     * @param connectionStats connection statistics (can be null)
+     * @return lease to release when the connection is no longer in use
+     */
+    static ConnectionLease acquire(HttpRequest<?> request, ConnectionLimiter connectionLimiter,
+                                   Duration priorityAging, ConnectionStats connectionStats) {
+        final String host = host(request.getBaseUrl());
+        final HostStats hostStats = connectionStats != null ? connectionStats.host(host) : null;
+        final long start = System.nanoTime();
+        if (connectionLimiter != null) {
+            if (hostStats != null) {
+                hostStats.waiting();
+            }
+            try {
+                connectionLimiter.acquire(host, request.getPriority(), priorityAging, request.getRemainingTime());
+            } finally {
+                if (hostStats != null) {
+                    hostStats.doneWaiting();
+                }
+            }
+        }
+        if (hostStats != null) {
+            hostStats.acquired(System.nanoTime() - start);
+        }
+        return new ConnectionLease(host, connectionLimiter, priorityAging, hostStats);
+    }
+
+    void release() {
+        if (released.compareAndSet(false, true)) {
+            if (connectionLimiter != null) {
+                connectionLimiter.release(host, priorityAging);
+            }
+            if (hostStats != null) {
+                hostStats.released();
+            }
+        }
+    }
+
+    /**
+     * @param entityStream entity stream of the response
+     * @return entity stream releasing this lease when closed or fully read
+     */
+    InputStream releaseOnClose(InputStream entityStream) {
+        return new FilterInputStream(entityStream) {
+            @Override
+            public int read() throws IOException {
+                final int b = super.read();
+                if (b < 0) {
+                    release();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                final int n = super.read(b, off, len);
+                if (n < 0) {
+                    release();
+                }
+                return n;
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    release();
+                }
+            }
+        };
+    }
+
+    /**
+     * @param baseUrl base URL of a request
+     * @return host name and port of given URL
+     */
+    static String host(String baseUrl) {
+        try {
+            final URI uri = URI.create(baseUrl);
+            if (uri.getHost() == null) {
+                return baseUrl;
+            }
+            final int port = uri.getPort() >= 0 ? uri.getPort() : "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+            return uri.getHost() + ":" + port;
+        } catch (IllegalArgumentException | NullPointerException e) {
+            return String.valueOf(baseUrl);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package dk.dbc.httpclient;
+
+import jakarta.ws.rs.ProcessingException;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of connections in use per host. Requests waiting for a connection are served
+ * by priority and then in order of arrival. A number of connections may be reserved for requests of
+ * {@link Priority#HIGH high priority}. To protect requests of lower priority against starvation, their
+ * priority is raised by one level for each aging period spent waiting. Aging only moves a request ahead
+ * in line, reserved connections are kept for requests of high priority from the outset.
+ */
+class ConnectionLimiter {
+    private final int maxPerHost;
+    private final int reserved;
+    private final Map<String, Host> hosts = new ConcurrentHashMap<>();
+
+    ConnectionLimiter(int maxPerHost) {
+        this(maxPerHost, 0);
+    }
+
+    /**
+     * @param maxPerHost maximum number of connections per host
+     * @param reservedFraction fraction of the connections reserved for requests of high priority,
+     *                         at least one connection is always left for other requests
+     */
+    ConnectionLimiter(int maxPerHost, double reservedFraction) {
+        if (maxPerHost < 1) {
+            throw new IllegalArgumentException("maxPerHost must be at least 1");
+        }
+        if (reservedFraction < 0 || reservedFraction >= 1) {
+            throw new IllegalArgumentException("reservedFraction must be at least 0 and less than 1");
+        }
+        this.maxPerHost = maxPerHost;
+        this.reserved = Math.min((int) (maxPerHost * reservedFraction), maxPerHost - 1);
+    }
+
+    int getMaxPerHost() {
+        return maxPerHost;
+    }
+
+    int getReserved() {
+        return reserved;
+    }
+
+    /**
+     * Waits for a connection to given host
+     * @param host host name and port
+     * @param priority priority of the request
+     * @param aging time after which a waiting request is raised one level in priority,
+     *              zero to disable aging
+     * @param timeout maximum time to wait or null to wait indefinitely
+     * @throws DeadlineExceededException if no connection became available in time
+     */
+    void acquire(String host, Priority priority, Duration aging, Duration timeout) throws DeadlineExceededException {
+        hosts.computeIfAbsent(host, key -> new Host()).acquire(host, priority, aging.toNanos(),
+                timeout == null ? null : System.nanoTime() + Math.max(0, timeout.toNanos()));
+    }
+
+    /**
+     * Releases a connection to given host, handing it to the next in line if any
+     * @param host host name and port
+     * @param aging time after which a waiting request is raised one level in priority,
+     *              zero to disable aging
+     */
+    void release(String host, Duration aging) {
+        hosts.get(host).release(aging.toNanos());
+    }
+
+    private class Host {
+        private final ReentrantLock lock = new ReentrantLock();
+        // Waiters by original priority in order of arrival
+        private final Deque<Waiter>[] waiters;
+        private int active;
+        private long arrivals;
+
+        @SuppressWarnings("unchecked")
+        Host() {
+            waiters = new Deque[Priority.values().length];
+            for (int i = 0; i < waiters.length; i++) {
+                waiters[i] = new ArrayDeque<>();
+            }
+        }
+
+        void acquire(String host, Priority priority, long agingNanos, Long deadlineNanos) {
+            lock.lock();
+            try {
+                final Waiter waiter = new Waiter(priority, arrivals++, System.nanoTime(), lock.newCondition());
+                waiters[priority.ordinal()].add(waiter);
+                dispatch(agingNanos);
+                try {
+                    while (!waiter.granted) {
+                        if (deadlineNanos == null) {
+                            waiter.condition.await();
+                        } else {
+                            final long remaining = deadlineNanos - System.nanoTime();
+                            if (remaining <= 0) {
+                                waiters[priority.ordinal()].remove(waiter);
+                                throw new DeadlineExceededException("Deadline exceeded waiting for a connection to " + host);
+                            }
+                            waiter.condition.awaitNanos(remaining);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    if (waiter.granted) {
+                        // Hand the connection on to the next in line
+                        active--;
+                    } else {
+                        waiters[priority.ordinal()].remove(waiter);
+                    }
+                    dispatch(agingNanos);
+                    Thread.currentThread().interrupt();
+                    throw new ProcessingException("Interrupted waiting for a connection to " + host, e);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void release(long agingNanos) {
+            lock.lock();
+            try {
+                active--;
+                dispatch(agingNanos);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Grants connections to the waiters next in line, signalling only the waiters granted a connection.
+         * Since waiters of the same priority age alike, the next in line is always at the head of one of the queues.
+         * Whether a waiter may use a reserved connection depends on its original priority, aging only
+         * moves it ahead of waiters of higher priority.
+         */
+        private void dispatch(long agingNanos) {
+            while (true) {
+                final long now = System.nanoTime();
+                Waiter next = null;
+                int nextLevel = -1;
+                for (int i = waiters.length - 1; i >= 0; i--) {
+                    final Waiter head = waiters[i].peek();
+                    if (head != null && active < limit(i)) {
+                        final int level = head.level(now, agingNanos);
+                        if (level > nextLevel || level == nextLevel && head.arrival < next.arrival) {
+                            next = head;
+                            nextLevel = level;
+                        }
+                    }
+                }
+                if (next == null) {
+                    return;
+                }
+                waiters[next.priority.ordinal()].poll();
+                active++;
+                next.granted = true;
+                next.condition.signal();
+            }
+        }
+
+        private int limit(int priority) {
+            return priority >= Priority.HIGH.ordinal() ? maxPerHost : maxPerHost - reserved;
+        }
+    }
+
+    private static class Waiter {
+        private final Priority priority;
+        private final long arrival;
+        private final long since;
+        private final Condition condition;
+        private boolean granted;
+
+        Waiter(Priority priority, long arrival, long since, Condition condition) {
+            this.priority = priority;
+            this.arrival = arrival;
+            this.since = since;
+            this.condition = condition;
+        }
+
+        int level(long now, long agingNanos) {
+            if (agingNanos <= 0) {
+                return priority.ordinal();
+            }
+            return (int) Math.min(Priority.HIGH.ordinal(), priority.ordinal() + (now - since) / agingNanos);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package dk.dbc.httpclient;
+
+import javax.net.ssl.SSLContext;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Connection statistics per host, see {@link HostStats}.
+ * <p>
+ * The connector of the client keeps its own pool of kept-alive connections, which does not expose whether
+ * a request reuses a connection. New HTTPS connections and their TLS handshakes are observed by building the
+ * client with an SSLContext instrumented by {@link #instrument(SSLContext)}.
+ * </p>
+ * <pre>
+ * {@code
+ * final ConnectionStats connectionStats = new ConnectionStats();
+ * final Client client = ClientBuilder.newBuilder()
+ *          .sslContext(connectionStats.instrument(SSLContext.getDefault()))
+ *          .build();
+ * final HttpClient httpClient = HttpClient.create(client, userAgent)
+ *          .withConnectionStats(connectionStats)
+ *          .withMaxConnectionsPerHost(20);
+ * ...
+ * connectionStats.getHost("localhost:8443").getWaitTimePercentile(99);
+ * }
+ * </pre>
+ * @see HttpClient#withConnectionStats(ConnectionStats)
+ */
+public class ConnectionStats {
+    private final Map<String, HostStats> hosts = new ConcurrentHashMap<>();
+
+    /**
+     * @return statistics by host name and port
+     */
+    public Map<String, HostStats> getHosts() {
+        return Collections.unmodifiableMap(hosts);
+    }
+
+    /**
+     * @param host host name and port, e.g. "localhost:8080"
+     * @return statistics of given host or null if no connections have been made to it
+     */
+    public HostStats getHost(String host) {
+        return hosts.get(host);
+    }
+
+    /**
+     * Instruments given SSLContext to record new connections and TLS handshake times
+     * of the sockets created by its socket factory
+     * @param sslContext initialised SSLContext
+     * @return instrumented SSLContext
+     */
+    public SSLContext instrument(SSLContext sslContext) {
+        return new InstrumentedSSLContext(sslContext, this);
+    }
+
+    HostStats host(String host) {
+        return hosts.computeIfAbsent(host, HostStats::new);
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionStats{" +
+                "hosts=" + hosts.values() +
+                '}';
+    }
+}
@@ -0,0 +1,13 @@
+package dk.dbc.httpclient;
+
+import jakarta.ws.rs.ProcessingException;
+
+/**
+ * Exception thrown when the deadline of a request has passed, or is too close
+ * for another attempt to be made.
+ */
+public class DeadlineExceededException extends ProcessingException {
+    public DeadlineExceededException(String message) {
+        super(message);
+    }
+}
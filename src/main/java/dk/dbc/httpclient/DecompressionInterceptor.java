@@ -14,16 +14,43 @@ import java.util.Objects;
  *
  * The auto decompression can be disabled by setting HTTP_AUTO_INFLATE_ENABLED=false
  *
+ * The size of the decompressed body is limited by the request property
+ * {@link BodySizeLimitInterceptor#MAX_DECOMPRESSED_BODY_SIZE} if set.
+ *
+ * When registered by {@link HttpClient#enableCompression()} only responses to requests having the request property
+ * {@link #DECOMPRESSION} set are decompressed, so that enabling compression for one HTTP client does not affect
+ * other HTTP clients sharing the web resources client.
+ *
  * @see Decompressor for the supported encodings
  */
 public class DecompressionInterceptor implements ReaderInterceptor {
+    public static final String DECOMPRESSION = "dk.dbc.httpclient.decompression";
+
+    private final boolean onRequestProperty;
+
+    public DecompressionInterceptor() {
+        this(false);
+    }
+
+    /**
+     * @param onRequestProperty true to only decompress responses to requests having the property {@link #DECOMPRESSION}
+     */
+    DecompressionInterceptor(boolean onRequestProperty) {
+        this.onRequestProperty = onRequestProperty;
+    }
 
     @Override
     public Object aroundReadFrom(ReaderInterceptorContext context) throws IOException, WebApplicationException {
+        if(onRequestProperty && !Boolean.TRUE.equals(context.getProperty(DECOMPRESSION))) return context.proceed();
         List<String> encodings = context.getHeaders().get("Content-Encoding");
         if(encodings == null || encodings.isEmpty()) return context.proceed();
         Decompressor decompressor = encodings.stream().filter(Objects::nonNull).map(Decompressor::from).findFirst().orElse(null);
-        if(decompressor != null) context.setInputStream(decompressor.streamer.apply(context.getInputStream()));
+        if(decompressor == null) return context.proceed();
+        context.setInputStream(decompressor.streamer.apply(context.getInputStream()));
+        long maxSize = BodySizeLimitInterceptor.getMaxSize(context, BodySizeLimitInterceptor.MAX_DECOMPRESSED_BODY_SIZE);
+        if(maxSize != Long.MAX_VALUE) {
+            context.setInputStream(new BoundedInputStream(context.getInputStream(), maxSize, "Decompressed response body"));
+        }
         return context.proceed();
     }
 }
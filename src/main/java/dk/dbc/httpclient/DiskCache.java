@@ -0,0 +1,438 @@
+package dk.dbc.httpclient;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent cache of GET responses on disk, surviving restarts of the JVM.
+ * <p>
+ * Each response is stored in a file of its own holding status, headers and body, the body being stored
+ * as received, i.e. still compressed if the server applied a Content-Encoding, so that it is only decoded
+ * by the {@link DecompressionInterceptor} when read. Files are memory-mapped when read and validated
+ * against the cache key and a checksum of the body, an invalid file being deleted and the resource fetched
+ * anew. The total size of the files is bounded, evicting the least recently used responses.
+ * </p>
+ * <p>
+ * Responses are fresh for the max-age of their Cache-Control header, or the default time to live if not
+ * given, and are not stored if marked no-store. Stale responses having an ETag or Last-Modified header are
+ * revalidated by a conditional request, a 304 Not Modified response being answered from the cache.
+ * The cache key is the request URI and Accept-Encoding header.
+ * </p>
+ * <p>
+ * Since the cache may be shared by all users of the client, and outlives the JVM, requests carrying an
+ * Authorization header bypass it, and responses marked private are not stored. Neither are responses
+ * varying by request headers other than Accept-Encoding, as they are not part of the cache key.
+ * </p>
+ * <pre>
+ * {@code
+ * httpClient.enableCompression()
+ *          .withDiskCache(new DiskCache(Path.of("/var/cache/myapp"), 1_000_000_000)
+ *              .withDefaultTimeToLive(Duration.ofDays(1)));
+ * }
+ * </pre>
+ * @see HttpClient#withDiskCache(DiskCache)
+ */
+public class DiskCache {
+    private static final int MAGIC = 0x44424343;
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".entry";
+
+    private final Path directory;
+    private final long maxSize;
+    // Access ordered index of the entries on disk, guarded by this
+    private final LinkedHashMap<String, IndexEntry> index = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private long size;
+    private volatile long defaultTimeToLiveMillis = Duration.ofHours(1).toMillis();
+    private volatile long maxEntrySize = 64 * 1024 * 1024;
+
+    /**
+     * Opens cache in given directory, indexing the responses already stored there
+     * @param directory cache directory, created if missing
+     * @param maxSize maximum total size in bytes of the stored responses
+     * @throws NullPointerException if given null-valued directory
+     * @throws UncheckedIOException if the directory can not be created or read
+     */
+    public DiskCache(Path directory, long maxSize) throws NullPointerException {
+        if (directory == null) {
+            throw new NullPointerException("directory can not be null");
+        }
+        this.directory = directory;
+        this.maxSize = maxSize;
+        try {
+            Files.createDirectories(directory);
+            loadIndex();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @param defaultTimeToLive time responses without Cache-Control max-age are fresh
+     * @return this cache
+     */
+    public DiskCache withDefaultTimeToLive(Duration defaultTimeToLive) {
+        this.defaultTimeToLiveMillis = defaultTimeToLive.toMillis();
+        return this;
+    }
+
+    /**
+     * @param maxEntrySize maximum size in bytes of a response body for it to be stored
+     * @return this cache
+     */
+    public DiskCache withMaxEntrySize(long maxEntrySize) {
+        this.maxEntrySize = Math.min(maxEntrySize, Integer.MAX_VALUE - 8);
+        return this;
+    }
+
+    public long getMaxEntrySize() {
+        return maxEntrySize;
+    }
+
+    /**
+     * @return number of stored responses
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * @return total size in bytes of the stored responses
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * @return number of requests answered from the cache, including revalidated responses
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of requests not answered from the cache
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Looks up valid response for given key
+     * @param key cache key
+     * @return cached response or null
+     */
+    CachedResponse lookup(String key) {
+        final IndexEntry entry;
+        synchronized (this) {
+            entry = index.get(key);
+        }
+        if (entry == null) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(entry.file, StandardOpenOption.READ)) {
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            final CachedResponse cached = read(buffer, key);
+            if (cached != null) {
+                Files.setLastModifiedTime(entry.file, FileTime.fromMillis(System.currentTimeMillis()));
+                return cached;
+            }
+        } catch (IOException | RuntimeException e) {
+            // Treated as invalid below
+        }
+        remove(key, entry);
+        return null;
+    }
+
+    /**
+     * Stores response under given key unless too large, evicting least recently used responses if needed
+     * @param key cache key
+     * @param status status code
+     * @param headers response headers
+     * @param body response body as received
+     */
+    void store(String key, int status, Map<String, List<String>> headers, ByteBuffer body) {
+        final long expiresAt = expiresAt(headers);
+        if (expiresAt < 0 || body.remaining() > maxEntrySize) {
+            return;
+        }
+        final Path file = directory.resolve(fileName(key));
+        final Path tmp = directory.resolve(file.getFileName() + "." + Thread.currentThread().threadId() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(key);
+                out.writeLong(expiresAt);
+                out.writeInt(status);
+                int count = 0;
+                for (List<String> values : headers.values()) {
+                    count += values.size();
+                }
+                out.writeInt(count);
+                for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                    for (String value : header.getValue()) {
+                        out.writeUTF(header.getKey());
+                        out.writeUTF(value);
+                    }
+                }
+                final CRC32 crc = new CRC32();
+                crc.update(body.duplicate());
+                out.writeLong(body.remaining());
+                out.writeLong(crc.getValue());
+                final byte[] chunk = new byte[8192];
+                final ByteBuffer remaining = body.duplicate();
+                while (remaining.hasRemaining()) {
+                    final int n = Math.min(chunk.length, remaining.remaining());
+                    remaining.get(chunk, 0, n);
+                    out.write(chunk, 0, n);
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            final long fileSize = Files.size(file);
+            synchronized (this) {
+                final IndexEntry previous = index.put(key, new IndexEntry(file, fileSize));
+                size += fileSize - (previous != null ? previous.size : 0);
+                evict();
+            }
+        } catch (IOException | RuntimeException e) {
+            // Caching is a best effort, a key too long or a full disk must not fail the request
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException ignored) {
+                // Nothing more to do
+            }
+        }
+    }
+
+    void hit() {
+        hits.incrementAndGet();
+    }
+
+    void miss() {
+        misses.incrementAndGet();
+    }
+
+    /**
+     * @param headers response headers
+     * @return expiry time in epoch millis, or -1 if the response must not be stored
+     */
+    long expiresAt(Map<String, List<String>> headers) {
+        final long now = System.currentTimeMillis();
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (!"Vary".equalsIgnoreCase(header.getKey())) {
+                continue;
+            }
+            for (String value : header.getValue()) {
+                for (String field : value.split(",")) {
+                    // Only Accept-Encoding is part of the cache key, Vary: * never matches
+                    final String trimmed = field.trim();
+                    if (!trimmed.isEmpty() && !trimmed.equalsIgnoreCase("Accept-Encoding")) {
+                        return -1;
+                    }
+                }
+            }
+        }
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (!"Cache-Control".equalsIgnoreCase(header.getKey())) {
+                continue;
+            }
+            for (String value : header.getValue()) {
+                for (String directive : value.split(",")) {
+                    final String trimmed = directive.trim().toLowerCase();
+                    if (trimmed.equals("no-store") || trimmed.equals("private") || trimmed.startsWith("private=")) {
+                        return -1;
+                    }
+                    if (trimmed.equals("no-cache")) {
+                        return now;
+                    }
+                    if (trimmed.startsWith("max-age=")) {
+                        try {
+                            return now + Long.parseLong(trimmed.substring(8).replace("\"", "")) * 1000;
+                        } catch (NumberFormatException e) {
+                            return now;
+                        }
+                    }
+                }
+            }
+        }
+        return now + defaultTimeToLiveMillis;
+    }
+
+    private CachedResponse read(ByteBuffer buffer, String expectedKey) throws IOException {
+        final ByteBuffer header = buffer.duplicate();
+        final DataInputStream in = new DataInputStream(new ByteBufferInputStream(header));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(expectedKey)) {
+            return null;
+        }
+        final long expiresAt = in.readLong();
+        final int status = in.readInt();
+        final int count = in.readInt();
+        final Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (int i = 0; i < count; i++) {
+            headers.computeIfAbsent(in.readUTF(), k -> new ArrayList<>()).add(in.readUTF());
+        }
+        final long length = in.readLong();
+        final long checksum = in.readLong();
+        if (length != header.remaining()) {
+            return null;
+        }
+        final ByteBuffer body = header.slice();
+        final CRC32 crc = new CRC32();
+        crc.update(body.duplicate());
+        if (crc.getValue() != checksum) {
+            return null;
+        }
+        return new CachedResponse(status, headers, body, expiresAt);
+    }
+
+    private void loadIndex() throws IOException {
+        final List<IndexEntry> entries = new ArrayList<>();
+        final Map<IndexEntry, String> keys = new LinkedHashMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                final String name = file.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    // Left behind by an interrupted store
+                    Files.deleteIfExists(file);
+                    continue;
+                }
+                if (!name.endsWith(SUFFIX)) {
+                    continue;
+                }
+                final String key = readKey(file);
+                if (key == null || !name.equals(fileName(key))) {
+                    Files.deleteIfExists(file);
+                    continue;
+                }
+                final IndexEntry entry = new IndexEntry(file, Files.size(file), Files.getLastModifiedTime(file).toMillis());
+                entries.add(entry);
+                keys.put(entry, key);
+            }
+        }
+        // Restore the least recently used order from the modification times touched on every hit
+        entries.sort((a, b) -> Long.compare(a.lastUsed, b.lastUsed));
+        synchronized (this) {
+            for (IndexEntry entry : entries) {
+                index.put(keys.get(entry), entry);
+                size += entry.size;
+            }
+            evict();
+        }
+    }
+
+    private static String readKey(Path file) {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            return in.readUTF();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private synchronized void remove(String key, IndexEntry entry) {
+        if (index.remove(key, entry)) {
+            size -= entry.size;
+            delete(entry.file);
+        }
+    }
+
+    // Must be called holding the lock
+    private void evict() {
+        final Iterator<IndexEntry> iterator = index.values().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            final IndexEntry eldest = iterator.next();
+            iterator.remove();
+            size -= eldest.size;
+            delete(eldest.file);
+        }
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // Overwritten if the resource is stored again
+        }
+    }
+
+    private static String fileName(String key) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest) + SUFFIX;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class IndexEntry {
+        private final Path file;
+        private final long size;
+        private final long lastUsed;
+
+        IndexEntry(Path file, long size) {
+            this(file, size, System.currentTimeMillis());
+        }
+
+        IndexEntry(Path file, long size, long lastUsed) {
+            this.file = file;
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    /**
+     * Response read from the cache, its body backed by the memory-mapped file
+     */
+    static class CachedResponse {
+        final int status;
+        final Map<String, List<String>> headers;
+        final ByteBuffer body;
+        final long expiresAt;
+
+        CachedResponse(int status, Map<String, List<String>> headers, ByteBuffer body, long expiresAt) {
+            this.status = status;
+            this.headers = Collections.unmodifiableMap(headers);
+            this.body = body;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isFresh() {
+            return System.currentTimeMillis() < expiresAt;
+        }
+
+        String getHeader(String name) {
+            final List<String> values = headers.get(name);
+            return values == null || values.isEmpty() ? null : values.get(0);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package dk.dbc.httpclient;
+
+import jakarta.ws.rs.HttpMethod;
+import jakarta.ws.rs.client.ClientRequestContext;
+import jakarta.ws.rs.client.ClientRequestFilter;
+import jakarta.ws.rs.client.ClientResponseContext;
+import jakarta.ws.rs.client.ClientResponseFilter;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MultivaluedMap;
+import jakarta.ws.rs.core.Response;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Filter answering GET requests from the {@link DiskCache} given by the request property {@link #DISK_CACHE}
+ * and storing the responses received from the server in it. Requests carrying an Authorization header
+ * bypass the cache.
+ *
+ * @see HttpClient#withDiskCache(DiskCache)
+ */
+public class DiskCacheFilter implements ClientRequestFilter, ClientResponseFilter {
+    public static final String DISK_CACHE = "dk.dbc.httpclient.diskCache";
+
+    private static final String CACHED_RESPONSE = "dk.dbc.httpclient.diskCache.cachedResponse";
+    private static final String HIT = "dk.dbc.httpclient.diskCache.hit";
+    private static final Set<String> UNCACHED_HEADERS = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+
+    static {
+        UNCACHED_HEADERS.addAll(List.of("Connection", "Keep-Alive", "Transfer-Encoding", "Content-Length",
+                "Set-Cookie", "Proxy-Authenticate", "Trailer", "Upgrade"));
+    }
+
+    @Override
+    public void filter(ClientRequestContext requestContext) {
+        final DiskCache diskCache = getDiskCache(requestContext);
+        if (diskCache == null) {
+            return;
+        }
+        final DiskCache.CachedResponse cached = diskCache.lookup(key(requestContext));
+        if (cached == null) {
+            diskCache.miss();
+            return;
+        }
+        if (cached.isFresh()) {
+            diskCache.hit();
+            requestContext.setProperty(HIT, Boolean.TRUE);
+            final Response.ResponseBuilder response = Response.status(cached.status)
+                    .entity(new ByteBufferInputStream(cached.body.duplicate()));
+            for (Map.Entry<String, List<String>> header : cached.headers.entrySet()) {
+                for (String value : header.getValue()) {
+                    response.header(header.getKey(), value);
+                }
+            }
+            requestContext.abortWith(response.header("Content-Length", cached.body.remaining()).build());
+            return;
+        }
+        final String etag = cached.getHeader("ETag");
+        final String lastModified = cached.getHeader("Last-Modified");
+        if (etag == null && lastModified == null) {
+            diskCache.miss();
+            return;
+        }
+        // Revalidate unless the caller made the request conditional itself
+        final MultivaluedMap<String, Object> headers = requestContext.getHeaders();
+        if (!headers.containsKey("If-None-Match") && !headers.containsKey("If-Modified-Since")) {
+            if (etag != null) {
+                headers.putSingle("If-None-Match", etag);
+            }
+            if (lastModified != null) {
+                headers.putSingle("If-Modified-Since", lastModified);
+            }
+            requestContext.setProperty(CACHED_RESPONSE, cached);
+        } else {
+            diskCache.miss();
+        }
+    }
+
+    @Override
+    public void filter(ClientRequestContext requestContext, ClientResponseContext responseContext) throws IOException {
+        final DiskCache diskCache = getDiskCache(requestContext);
+        if (diskCache == null || requestContext.getProperty(HIT) != null) {
+            return;
+        }
+        final Object cachedProperty = requestContext.getProperty(CACHED_RESPONSE);
+        if (cachedProperty instanceof DiskCache.CachedResponse cached) {
+            if (responseContext.getStatus() == Response.Status.NOT_MODIFIED.getStatusCode()) {
+                diskCache.hit();
+                answerFromCache(diskCache, requestContext, responseContext, cached);
+                return;
+            }
+            diskCache.miss();
+        }
+        if (responseContext.getStatus() == Response.Status.OK.getStatusCode() && responseContext.hasEntity()) {
+            store(diskCache, requestContext, responseContext);
+        }
+    }
+
+    private static void answerFromCache(DiskCache diskCache, ClientRequestContext requestContext,
+                                        ClientResponseContext responseContext, DiskCache.CachedResponse cached) {
+        // Headers of the 304 response update the stored ones
+        final MultivaluedMap<String, String> headers = responseContext.getHeaders();
+        for (Map.Entry<String, List<String>> header : cached.headers.entrySet()) {
+            if (!headers.containsKey(header.getKey())) {
+                headers.addAll(header.getKey(), header.getValue());
+            }
+        }
+        headers.putSingle("Content-Length", Integer.toString(cached.body.remaining()));
+        responseContext.setStatus(cached.status);
+        responseContext.setEntityStream(new ByteBufferInputStream(cached.body.duplicate()));
+        diskCache.store(key(requestContext), cached.status, cachedHeaders(headers), cached.body.duplicate());
+    }
+
+    private static void store(DiskCache diskCache, ClientRequestContext requestContext,
+                              ClientResponseContext responseContext) throws IOException {
+        final Map<String, List<String>> headers = cachedHeaders(responseContext.getHeaders());
+        final long maxEntrySize = diskCache.getMaxEntrySize();
+        if (diskCache.expiresAt(headers) < 0 || responseContext.getLength() > maxEntrySize) {
+            return;
+        }
+        // The body is read before any reader interceptor, so it is stored still compressed
+        final InputStream in = responseContext.getEntityStream();
+        final byte[] body = in.readNBytes((int) maxEntrySize + 1);
+        if (body.length > maxEntrySize) {
+            responseContext.setEntityStream(new SequenceInputStream(new ByteArrayInputStream(body), in));
+            return;
+        }
+        in.close();
+        responseContext.setEntityStream(new ByteArrayInputStream(body));
+        diskCache.store(key(requestContext), responseContext.getStatus(), headers, ByteBuffer.wrap(body));
+    }
+
+    private static Map<String, List<String>> cachedHeaders(MultivaluedMap<String, String> headers) {
+        final Map<String, List<String>> cached = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (!UNCACHED_HEADERS.contains(header.getKey())) {
+                cached.put(header.getKey(), header.getValue());
+            }
+        }
+        return cached;
+    }
+
+    private static DiskCache getDiskCache(ClientRequestContext requestContext) {
+        final Object diskCache = requestContext.getProperty(DISK_CACHE);
+        return diskCache instanceof DiskCache && HttpMethod.GET.equals(requestContext.getMethod())
+                && requestContext.getHeaderString(HttpHeaders.AUTHORIZATION) == null
+                ? (DiskCache) diskCache : null;
+    }
+
+    private static String key(ClientRequestContext requestContext) {
+        final String acceptEncoding = requestContext.getHeaderString("Accept-Encoding");
+        return requestContext.getUri() + (acceptEncoding != null ? " " + acceptEncoding : "");
+    }
+}
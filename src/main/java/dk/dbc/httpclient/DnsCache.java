@@ -0,0 +1,106 @@
+package dk.dbc.httpclient;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process cache of host name resolutions with a configurable time to live,
+ * used when warming up an {@link HttpClient}.
+ * <p>
+ * The connectors do not use this cache, they resolve host names through the cache of the JVM,
+ * governed by {@code networkaddress.cache.ttl}. With background refresh enabled, cached host names
+ * are resolved again before they expire, which as a side effect repopulates the cache of the JVM
+ * when its entries have expired, making it less likely, but not impossible, for a request to block
+ * on a DNS lookup. Failed refreshes are retried at the next refresh.
+ * </p>
+ * @see HttpClient#withDnsCache(DnsCache)
+ */
+public class DnsCache implements AutoCloseable {
+    private final long ttlNanos;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService refresher;
+
+    /**
+     * Creates cache without background refresh
+     * @param ttl time to live of cached resolutions
+     */
+    public DnsCache(Duration ttl) {
+        this(ttl, false);
+    }
+
+    /**
+     * @param ttl time to live of cached resolutions
+     * @param backgroundRefresh whether to refresh cached resolutions in the background before they expire
+     * @throws NullPointerException if given null-valued ttl
+     */
+    public DnsCache(Duration ttl, boolean backgroundRefresh) throws NullPointerException {
+        if (ttl == null) {
+            throw new NullPointerException("ttl can not be null");
+        }
+        this.ttlNanos = ttl.toNanos();
+        if (backgroundRefresh) {
+            refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread thread = new Thread(r, "httpclient-dns-refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+            // Refresh at half the time to live so that entries are renewed before expiring
+            final long period = Math.max(1, ttlNanos / 2);
+            refresher.scheduleWithFixedDelay(this::refresh, period, period, TimeUnit.NANOSECONDS);
+        } else {
+            refresher = null;
+        }
+    }
+
+    /**
+     * Resolves given host name using the cached addresses if not expired
+     * @param host host name
+     * @return addresses of host
+     * @throws UnknownHostException if the host could not be resolved
+     */
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        final Entry entry = entries.get(host);
+        if (entry != null && System.nanoTime() - entry.resolvedAt < ttlNanos) {
+            return entry.addresses.clone();
+        }
+        return lookup(host).addresses.clone();
+    }
+
+    /**
+     * @return number of cached host names
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public void close() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+    }
+
+    private Entry lookup(String host) throws UnknownHostException {
+        final Entry entry = new Entry(InetAddress.getAllByName(host), System.nanoTime());
+        entries.put(host, entry);
+        return entry;
+    }
+
+    private void refresh() {
+        for (String host : entries.keySet()) {
+            try {
+                lookup(host);
+            } catch (UnknownHostException | RuntimeException e) {
+                // Retried at the next refresh
+            }
+        }
+    }
+
+    private record Entry(InetAddress[] addresses, long resolvedAt) {}
+}
@@ -0,0 +1,48 @@
+package dk.dbc.httpclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Codec for reading and writing entities directly from and to streams, bypassing
+ * the lookup of MessageBodyReader and MessageBodyWriter providers for each call.
+ * <p>
+ * Implementations must be thread safe. Example backed by Jackson caching a reader per type:
+ * <pre>
+ * {@code
+ * public class JacksonCodec implements EntityCodec {
+ *     private final ObjectMapper mapper = new ObjectMapper();
+ *     private final Map<Class<?>, ObjectReader> readers = new ConcurrentHashMap<>();
+ *
+ *     public <T> T read(InputStream in, Class<T> type) throws IOException {
+ *         return readers.computeIfAbsent(type, mapper::readerFor).readValue(in);
+ *     }
+ *
+ *     public void write(Object entity, OutputStream out) throws IOException {
+ *         mapper.writeValue(out, entity);
+ *     }
+ * }
+ * }
+ * </pre>
+ * @see HttpClient#withJsonCodec(EntityCodec)
+ */
+public interface EntityCodec {
+    /**
+     * Reads entity from given stream, the stream is closed by the caller
+     * @param in (decompressed) response body
+     * @param type entity class
+     * @param <T> entity type
+     * @return entity
+     * @throws IOException on failure to read or decode the entity
+     */
+    <T> T read(InputStream in, Class<T> type) throws IOException;
+
+    /**
+     * Writes given entity to stream, the stream is closed by the caller
+     * @param entity entity
+     * @param out request body
+     * @throws IOException on failure to encode or write the entity
+     */
+    void write(Object entity, OutputStream out) throws IOException;
+}
@@ -0,0 +1,22 @@
+package dk.dbc.httpclient;
+
+import java.util.function.Consumer;
+
+/**
+ * State of an event stream consumption spanning reconnects
+ */
+class EventStream {
+    static final String LAST_EVENT_ID = "Last-Event-ID";
+
+    final Consumer<ServerSentEvent> consumer;
+    volatile String lastEventId;
+    // Reconnection time in milliseconds last requested by the server, if any
+    volatile Long retry;
+    volatile boolean cancelled;
+    // System.nanoTime() at which the last connection ended, if any, accessed by the executing thread only
+    Long disconnected;
+
+    EventStream(Consumer<ServerSentEvent> consumer) {
+        this.consumer = consumer;
+    }
+}
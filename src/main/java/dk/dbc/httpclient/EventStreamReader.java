@@ -0,0 +1,92 @@
+package dk.dbc.httpclient;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reader of events from a text/event-stream as specified by the HTML Living Standard.
+ * Each event is returned as soon as the blank line ending it has been received.
+ */
+class EventStreamReader {
+    private static final String DEFAULT_EVENT_NAME = "message";
+
+    private final BufferedReader reader;
+    private String lastEventId;
+    private Long retry;
+
+    EventStreamReader(InputStream in, String lastEventId, Long retry) {
+        this.reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        this.lastEventId = lastEventId;
+        this.retry = retry;
+    }
+
+    /**
+     * @return next event or null at end of stream
+     * @throws IOException on failure to read from the stream
+     */
+    ServerSentEvent next() throws IOException {
+        StringBuilder data = null;
+        String name = null;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) {
+                if (data == null) {
+                    // Nothing to dispatch, a retry field has only updated the reconnection time
+                    name = null;
+                    continue;
+                }
+                return new ServerSentEvent(lastEventId, name != null ? name : DEFAULT_EVENT_NAME, data.toString(), retry);
+            }
+            if (line.charAt(0) == ':') {
+                continue;
+            }
+            final int colon = line.indexOf(':');
+            final String field = colon < 0 ? line : line.substring(0, colon);
+            String value = colon < 0 ? "" : line.substring(colon + 1);
+            if (value.startsWith(" ")) {
+                value = value.substring(1);
+            }
+            switch (field) {
+                case "data":
+                    data = data == null ? new StringBuilder(value) : data.append('\n').append(value);
+                    break;
+                case "event":
+                    name = value;
+                    break;
+                case "id":
+                    if (value.indexOf('\0') < 0) {
+                        lastEventId = value.isEmpty() ? null : value;
+                    }
+                    break;
+                case "retry":
+                    // Only values of ASCII digits are accepted as specified
+                    if (!value.isEmpty() && value.chars().allMatch(c -> c >= '0' && c <= '9')) {
+                        try {
+                            retry = Long.parseLong(value);
+                        } catch (NumberFormatException e) {
+                            // Out of range, ignored
+                        }
+                    }
+                    break;
+                default:
+                    // Unknown fields are ignored as specified
+            }
+        }
+        // An incomplete event at end of stream is discarded as specified
+        return null;
+    }
+
+    String getLastEventId() {
+        return lastEventId;
+    }
+
+    /**
+     * @return reconnection time in milliseconds last requested by the server, or null if none
+     */
+    Long getRetry() {
+        return retry;
+    }
+}
@@ -0,0 +1,73 @@
+package dk.dbc.httpclient;
+
+import jakarta.ws.rs.ProcessingException;
+
+import java.util.concurrent.Flow;
+import java.util.function.Consumer;
+
+/**
+ * Subscription to an event stream read on the thread of the subscriber, which waits
+ * for demand before passing on each event and thereby stops reading from the stream
+ */
+class EventStreamSubscription implements Flow.Subscription, Consumer<ServerSentEvent> {
+    private final Flow.Subscriber<? super ServerSentEvent> subscriber;
+    private final EventStream eventStream;
+    private long demand;
+    private IllegalArgumentException invalidRequest;
+
+    EventStreamSubscription(Flow.Subscriber<? super ServerSentEvent> subscriber) {
+        this.subscriber = subscriber;
+        this.eventStream = new EventStream(this);
+    }
+
+    EventStream getEventStream() {
+        return eventStream;
+    }
+
+    /**
+     * @return failure caused by a non-positive request, which terminates the stream, or null if none
+     */
+    synchronized IllegalArgumentException getInvalidRequest() {
+        return invalidRequest;
+    }
+
+    @Override
+    public synchronized void request(long n) {
+        if (n <= 0) {
+            // Rule 3.9: the stream is terminated and onError signalled by the reading thread
+            if (invalidRequest == null) {
+                invalidRequest = new IllegalArgumentException("Non-positive request " + n);
+            }
+            eventStream.cancelled = true;
+        } else {
+            demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+        }
+        notifyAll();
+    }
+
+    @Override
+    public void cancel() {
+        eventStream.cancelled = true;
+        request(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void accept(ServerSentEvent event) {
+        synchronized (this) {
+            while (demand == 0 && !eventStream.cancelled) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new ProcessingException(e);
+                }
+            }
+            if (demand != Long.MAX_VALUE && demand > 0) {
+                demand--;
+            }
+        }
+        if (!eventStream.cancelled) {
+            subscriber.onNext(event);
+        }
+    }
+}
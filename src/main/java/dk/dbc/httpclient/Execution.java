@@ -0,0 +1,107 @@
+package dk.dbc.httpclient;
+
+import jakarta.ws.rs.client.Entity;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * State of a single execution of a request, possibly consisting of several attempts.
+ * <p>
+ * Requests may be executed several times and concurrently, so per-execution state is kept here
+ * rather than on the request. An execution is bound to the executing thread from when it is entered
+ * until it is exited, making it visible when the invocation is configured by the call of the request,
+ * and it is shared by nested calls executing the same request on that thread, e.g. the retries and
+ * expectations of a {@link FailSafeHttpClient}.
+ * </p>
+ * <p>
+ * Executions are only created when there is state to keep, e.g. a span, a connection lease, headers or an entity,
+ * so that executing a request on a client without tracing, connection limits and the like allocates none.
+ * </p>
+ */
+final class Execution {
+    private static final ThreadLocal<Execution> CURRENT = new ThreadLocal<>();
+
+    private final HttpRequest<?> request;
+    private final Execution outer;
+    private int depth;
+
+    // Span of the observed execution, if any
+    Span span;
+    // Connection held by the ongoing attempt, if connections are limited or observed
+    ConnectionLease lease;
+    // Size up to which the response body is read in one go, if the entity is read before returning
+    int smallBodySize;
+    // Headers sent in addition to, or instead of, the headers of the request
+    private Map<String, String> headers;
+    // Entity sent instead of the entity of the request, if any
+    Entity<?> entity;
+
+    private Execution(HttpRequest<?> request, Execution outer) {
+        this.request = request;
+        this.outer = outer;
+    }
+
+    /**
+     * @param request request
+     * @return execution of given request bound to the current thread, or null if there is none
+     */
+    static Execution current(HttpRequest<?> request) {
+        final Execution current = CURRENT.get();
+        return current != null && current.request == request ? current : null;
+    }
+
+    /**
+     * Enters the execution of given request bound to the current thread, starting a new execution
+     * if there is none. Each call must be matched by a call of {@link #exit()}.
+     * @param request request
+     * @return execution of given request
+     */
+    static Execution enter(HttpRequest<?> request) {
+        final Execution current = CURRENT.get();
+        if (current != null && current.request == request) {
+            current.depth++;
+            return current;
+        }
+        final Execution execution = new Execution(request, current);
+        CURRENT.set(execution);
+        return execution;
+    }
+
+    /**
+     * Exits this execution, unbinding it from the current thread when exited by its outermost caller
+     */
+    void exit() {
+        if (depth > 0) {
+            depth--;
+        } else if (outer != null) {
+            CURRENT.set(outer);
+        } else {
+            CURRENT.remove();
+        }
+    }
+
+    Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Sets a header for this execution only, leaving the headers of the request untouched
+     * @param name header name
+     * @param value header value
+     */
+    void setHeader(String name, String value) {
+        if (headers == null) {
+            headers = new LinkedHashMap<>();
+        }
+        headers.put(name, value);
+    }
+
+    /**
+     * @param name header name
+     * @return whether the header is set by this execution or by the request
+     */
+    boolean hasHeader(String name) {
+        return headers != null && headers.containsKey(name) || request.getHeaders().containsKey(name);
+    }
+}
@@ -1,10 +1,26 @@
 package dk.dbc.httpclient;
 
 import dk.dbc.commons.useragent.UserAgent;
+import jakarta.ws.rs.ProcessingException;
 import jakarta.ws.rs.client.Client;
+import jakarta.ws.rs.client.Entity;
 import jakarta.ws.rs.core.Response;
 import net.jodah.failsafe.Failsafe;
+import net.jodah.failsafe.FailsafeException;
 import net.jodah.failsafe.RetryPolicy;
+import net.jodah.failsafe.function.CheckedSupplier;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.time.Duration;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 /**
  * Class for executing HTTP requests in a fail safe manner with automatic retry functionality
@@ -31,9 +47,50 @@ import net.jodah.failsafe.RetryPolicy;
  *
  * }
  * </pre>
+ * <p>
+ * Retrying stops with a {@link DeadlineExceededException} once the time remaining until the
+ * deadline of a request (see {@link HttpRequest#withDeadline(java.time.Instant)}) is less than
+ * the minimum attempt time. The timeouts of each attempt are shortened to the time remaining, and
+ * waiting for a retry is cut off at the last moment at which another attempt can be made, whatever
+ * the delay computed by the retry policy, including delays of functions given by
+ * {@link RetryPolicy#withDelayOn} and {@link RetryPolicy#withDelayWhen}. The given retry policy is
+ * copied, later changes to it are not seen by the client.
+ * <pre>
+ * {@code
+ *
+ * failSafeHttpClient.withMinimumAttemptTime(Duration.ofMillis(100));
+ * httpGet.withDeadline(Duration.ofSeconds(5)).execute();
+ *
+ * }
+ * </pre>
+ * <p>
+ * Event streams (see {@link HttpClient#executeEventStream(HttpGet, java.util.function.Consumer)}) are
+ * reconnected, resuming from the last event id, both when the connection fails, according to the retry policy,
+ * and when the stream ends, until the server responds 204 No Content. No connection is made before the
+ * reconnection time last requested by the server in a retry field has passed since the previous connection
+ * ended, the delay of the retry policy being the reconnection time until the server has requested one.
+ * </p>
+ * <p>
+ * POST and PUT requests can be made safe to retry by idempotency keys, sending the same generated
+ * Idempotency-Key header in all attempts. Without idempotency keys, retries of POST requests can be
+ * limited to failures occurring before the request was sent.
+ * <pre>
+ * {@code
+ *
+ * failSafeHttpClient.withIdempotencyKeys(true);
+ * // or
+ * failSafeHttpClient.withUnsafeRetries(false);
+ *
+ * }
+ * </pre>
  */
 public class FailSafeHttpClient extends HttpClient {
+    public static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+
     private final RetryPolicy<Response> retryPolicy;
+    private Duration minimumAttemptTime = Duration.ZERO;
+    private boolean idempotencyKeys;
+    private boolean unsafeRetries = true;
 
     /**
      * Creates new instance of FailSafeHttpClient
@@ -66,7 +123,10 @@ public class FailSafeHttpClient extends HttpClient {
         if (retryPolicy == null) {
             throw new NullPointerException("retryPolicy can not be null");
         }
-        this.retryPolicy = retryPolicy;
+        // The policy is copied, since it may be shared by other clients and executors
+        this.retryPolicy = retryPolicy.copy();
+        this.retryPolicy.abortOn(DeadlineExceededException.class);
+        this.retryPolicy.abortOn(RetryUnsafeException.class);
         if (overrideOnRetry) {
             this.retryPolicy.onRetry(response -> {
                 if (response != null && response.getLastResult() != null) response.getLastResult().close();
@@ -74,14 +134,127 @@ public class FailSafeHttpClient extends HttpClient {
         }
     }
 
+    /**
+     * Sets the minimum time that must remain until the deadline of a request
+     * for another attempt to be made
+     * @param minimumAttemptTime minimum time remaining
+     * @return this client
+     */
+    public FailSafeHttpClient withMinimumAttemptTime(Duration minimumAttemptTime) {
+        if (minimumAttemptTime == null) {
+            throw new NullPointerException("minimumAttemptTime can not be null");
+        }
+        this.minimumAttemptTime = minimumAttemptTime;
+        return this;
+    }
+
+    /**
+     * Enables attaching a generated Idempotency-Key header to POST and PUT requests not having one,
+     * the same key being sent by all attempts of an execution, so that a server supporting the header
+     * can recognise retries of a request it has already processed. Request entities which can only be
+     * written once, input streams and multipart bodies with streamed parts, are buffered in memory
+     * so that they can be sent again.
+     * @param idempotencyKeys whether to attach idempotency keys
+     * @return this client
+     */
+    public FailSafeHttpClient withIdempotencyKeys(boolean idempotencyKeys) {
+        this.idempotencyKeys = idempotencyKeys;
+        return this;
+    }
+
+    /**
+     * Sets whether POST requests without an Idempotency-Key header are retried on failures occurring after
+     * the request may have reached the server, e.g. read timeouts. If not, such failures are only retried
+     * when the request can not have been sent (see {@link RetrySafety#isRequestNotSent(Throwable)}), other
+     * failures aborting the execution with a {@link RetryUnsafeException}. Responses are retried according
+     * to the retry policy in any case. Unsafe retries are allowed by default.
+     * @param unsafeRetries whether to allow unsafe retries
+     * @return this client
+     */
+    public FailSafeHttpClient withUnsafeRetries(boolean unsafeRetries) {
+        this.unsafeRetries = unsafeRetries;
+        return this;
+    }
+
     @Override
     public Response execute(HttpRequest<? extends HttpRequest<?>> request) {
-        return Failsafe.with(retryPolicy).get(() -> super.execute(request));
+        if (getTracing() == null && getSlowRequestLog() == null) {
+            return executeWithRetries(request);
+        }
+        return observed(request, () -> executeWithRetries(request));
+    }
+
+    private Response executeWithRetries(HttpRequest<? extends HttpRequest<?>> request) {
+        return withIdempotencyKey(request, () -> retrying(request, () -> {
+            checkDeadline(request);
+            return executeSafeAttempt(request);
+        }));
+    }
+
+    @Override
+    Response executeEventStream(HttpGet request, EventStream eventStream) {
+        while (true) {
+            final Response response = retrying(request, () -> {
+                awaitReconnectionTime(request, eventStream);
+                checkDeadline(request);
+                try {
+                    return executeEventStreamAttempt(request, eventStream);
+                } finally {
+                    eventStream.disconnected = System.nanoTime();
+                }
+            });
+            if (eventStream.cancelled || response.getStatus() != Response.Status.OK.getStatusCode()) {
+                return response;
+            }
+            // The stream ended without failing, reconnecting in a new execution of the retry policy
+        }
+    }
+
+    /**
+     * Waits until the reconnection time has passed since the last connection of given event stream ended,
+     * the reconnection time being the last requested by the server, or else the delay of the retry policy
+     */
+    private void awaitReconnectionTime(HttpRequest<?> request, EventStream eventStream) {
+        final Long disconnected = eventStream.disconnected;
+        if (disconnected == null) {
+            return;
+        }
+        final Long retry = eventStream.retry;
+        final Duration reconnectionTime = retry != null ? Duration.ofMillis(retry) : retryPolicy.getDelay();
+        final Duration wait = reconnectionTime.minusNanos(System.nanoTime() - disconnected);
+        if (wait.isNegative() || wait.isZero()) {
+            return;
+        }
+        final Duration remaining = request.getRemainingTime();
+        if (remaining != null && wait.compareTo(remaining.minus(minimumAttemptTime)) > 0) {
+            throw new DeadlineExceededException("Deadline too close to reconnect " + request);
+        }
+        try {
+            Thread.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProcessingException("Interrupted waiting to reconnect " + request, e);
+        }
+    }
+
+    @Override
+    Response downloadRange(HttpGet request, FileChannel channel, long offset, long length) {
+        return retrying(request, () -> {
+            checkDeadline(request);
+            return super.downloadRange(request, channel, offset, length);
+        });
     }
 
     @Override
     public Response executeAndExpect(HttpRequest<? extends HttpRequest<?>> request, Response.Status expectedStatus) {
-        return Failsafe.with(retryPolicy).get(() -> super.executeAndExpect(request, expectedStatus));
+        return withIdempotencyKey(request, () ->
+                retrying(request, () -> super.executeAndExpect(request, expectedStatus)));
+    }
+
+    @Override
+    public Response executeAndExpect(HttpRequest<? extends HttpRequest<?>> request, Set<Integer> expectedStatuses) {
+        return withIdempotencyKey(request, () ->
+                retrying(request, () -> super.executeAndExpect(request, expectedStatuses)));
     }
 
     @Override
@@ -91,8 +264,8 @@ public class FailSafeHttpClient extends HttpClient {
 
     @Override
     public <T> T executeAndExpect(HttpRequest<? extends HttpRequest<?>> request, Response.Status expectedStatus, Class<T> entityClass) {
-        try (Response response = Failsafe.with(retryPolicy).get(() -> super.executeAndExpect(request, expectedStatus))) {
-            return response.readEntity(entityClass);
+        try (Response response = executeExpectingEntity(request, expectedStatus)) {
+            return readEntity(response, entityClass);
         }
     }
 
@@ -102,8 +275,267 @@ public class FailSafeHttpClient extends HttpClient {
         return this;
     }
 
+    @Override
+    public FailSafeHttpClient withSmallBodySize(int smallBodySize) {
+        super.withSmallBodySize(smallBodySize);
+        return this;
+    }
+
+    @Override
+    public FailSafeHttpClient withJsonCodec(EntityCodec jsonCodec) {
+        super.withJsonCodec(jsonCodec);
+        return this;
+    }
+
+    @Override
+    public FailSafeHttpClient withMaxCompressedBodySize(long maxSize) {
+        super.withMaxCompressedBodySize(maxSize);
+        return this;
+    }
+
+    @Override
+    public FailSafeHttpClient withMaxDecompressedBodySize(long maxSize) {
+        super.withMaxDecompressedBodySize(maxSize);
+        return this;
+    }
+
+    @Override
+    public FailSafeHttpClient withTracing(Tracing tracing) {
+        super.withTracing(tracing);
+        return this;
+    }
+
+    @Override
+    public FailSafeHttpClient withSlowRequestLog(SlowRequestLog slowRequestLog) {
+        super.withSlowRequestLog(slowRequestLog);
+        return this;
+    }
+
+    @Override
+    public FailSafeHttpClient withLeakDetector(LeakDetector leakDetector) {
+        super.withLeakDetector(leakDetector);
+        return this;
+    }
+
+    @Override
+    public FailSafeHttpClient withDiskCache(DiskCache diskCache) {
+        super.withDiskCache(diskCache);
+        return this;
+    }
+
+    @Override
+    public FailSafeHttpClient withConnectionStats(ConnectionStats connectionStats) {
+        super.withConnectionStats(connectionStats);
+        return this;
+    }
+
+    @Override
+    public FailSafeHttpClient withMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        super.withMaxConnectionsPerHost(maxConnectionsPerHost);
+        return this;
+    }
+
+    @Override
+    public FailSafeHttpClient withMaxConnectionsPerHost(int maxConnectionsPerHost, double reservedForHighPriority) {
+        super.withMaxConnectionsPerHost(maxConnectionsPerHost, reservedForHighPriority);
+        return this;
+    }
+
+    @Override
+    public FailSafeHttpClient withPriorityAging(Duration priorityAging) throws NullPointerException {
+        super.withPriorityAging(priorityAging);
+        return this;
+    }
+
+    @Override
+    public FailSafeHttpClient withDnsCache(DnsCache dnsCache) {
+        super.withDnsCache(dnsCache);
+        return this;
+    }
+
+    @Override
+    public FailSafeHttpClient withConnectTimeout(Duration connectTimeout) {
+        super.withConnectTimeout(connectTimeout);
+        return this;
+    }
+
+    @Override
+    public FailSafeHttpClient withReadTimeout(Duration readTimeout) {
+        super.withReadTimeout(readTimeout);
+        return this;
+    }
+
     @Override
     public <T> T executeAndExpect(HttpRequest<? extends HttpRequest<?>> request, Class<T> entityClass) {
         return executeAndExpect(request, Response.Status.OK, entityClass);
     }
+
+    /**
+     * Executes given execution with an idempotency key attached if enabled and the request is a POST
+     * or PUT request without one. The key and any entity buffered to be sent again belong to this
+     * execution only, the request itself is left untouched, so that executing it again is a new
+     * logical request.
+     */
+    private <T> T withIdempotencyKey(HttpRequest<?> request, Supplier<T> execution) {
+        if (!idempotencyKeys || !(request instanceof HttpPost || request instanceof HttpPut)) {
+            return execution.get();
+        }
+        final Execution context = Execution.enter(request);
+        try {
+            if (!context.hasHeader(IDEMPOTENCY_KEY)) {
+                context.entity = replayable(request instanceof HttpPost
+                        ? ((HttpPost) request).getEntity() : ((HttpPut) request).getEntity());
+                context.setHeader(IDEMPOTENCY_KEY, UUID.randomUUID().toString());
+            }
+            return execution.get();
+        } finally {
+            context.exit();
+        }
+    }
+
+    /**
+     * Executes given attempts according to the retry policy. For a request with a deadline, waiting for
+     * a retry is cut off at the last moment at which the minimum attempt time remains, whatever the delay
+     * computed by the policy, and the execution then fails with a {@link DeadlineExceededException}.
+     */
+    private Response retrying(HttpRequest<?> request, CheckedSupplier<Response> attempts) {
+        final Duration remaining = request.getRemainingTime();
+        if (remaining == null || remaining.compareTo(minimumAttemptTime) <= 0) {
+            // Without a deadline there is nothing to cut off, and too close to it the first attempt is aborted
+            return Failsafe.with(retryPolicy).get(attempts);
+        }
+        final RetryCutOff cutOff = new RetryCutOff(remaining.minus(minimumAttemptTime));
+        try {
+            return Failsafe.with(retryPolicy).get(() -> {
+                cutOff.disarm();
+                try {
+                    return attempts.get();
+                } finally {
+                    cutOff.arm();
+                }
+            });
+        } catch (FailsafeException e) {
+            if (cutOff.hasFired()) {
+                throw new DeadlineExceededException("Deadline too close for another attempt of " + request);
+            }
+            throw e;
+        } finally {
+            cutOff.disarm();
+        }
+    }
+
+    private Response executeSafeAttempt(HttpRequest<?> request) {
+        if (unsafeRetries || !(request instanceof HttpPost)) {
+            return executeAttempt(request);
+        }
+        final Execution execution = Execution.current(request);
+        if (execution != null ? execution.hasHeader(IDEMPOTENCY_KEY) : request.getHeaders().containsKey(IDEMPOTENCY_KEY)) {
+            return executeAttempt(request);
+        }
+        try {
+            return executeAttempt(request);
+        } catch (ProcessingException e) {
+            if (e instanceof DeadlineExceededException || RetrySafety.isRequestNotSent(e)) {
+                throw e;
+            }
+            throw new RetryUnsafeException("Not retrying " + request + " which may have reached the server", e);
+        }
+    }
+
+    /**
+     * @return given entity, or a copy buffered in memory if it can only be written once
+     */
+    private static Entity<?> replayable(Entity<?> entity) {
+        if (entity == null) {
+            return null;
+        }
+        final Object value = entity.getEntity();
+        final byte[] bytes;
+        try {
+            if (value instanceof InputStream) {
+                try (InputStream in = (InputStream) value) {
+                    bytes = in.readAllBytes();
+                }
+            } else if (value instanceof MultipartBody && ((MultipartBody) value).getContentLength() < 0) {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ((MultipartBody) value).write(out);
+                bytes = out.toByteArray();
+            } else {
+                return entity;
+            }
+        } catch (IOException e) {
+            throw new ProcessingException(e);
+        }
+        return Entity.entity(bytes, entity.getVariant(), entity.getAnnotations());
+    }
+
+    private void checkDeadline(HttpRequest<?> request) throws DeadlineExceededException {
+        final Duration remaining = request.getRemainingTime();
+        if (remaining != null && (remaining.isNegative() || remaining.isZero()
+                || remaining.compareTo(minimumAttemptTime) < 0)) {
+            throw new DeadlineExceededException("Deadline too close for another attempt of " + request);
+        }
+    }
+
+    /**
+     * Cut-off of the waits for retries of an execution. While armed, i.e. between attempts, the executing
+     * thread is interrupted at the cut-off, ending the interruptible retry delay of Failsafe.
+     */
+    private static class RetryCutOff {
+        private static final ScheduledThreadPoolExecutor SCHEDULER = newScheduler();
+
+        private final Thread thread = Thread.currentThread();
+        private final long cutOffNanos;
+        private ScheduledFuture<?> interrupt;
+        private boolean fired;
+        private boolean interruptPending;
+
+        RetryCutOff(Duration available) {
+            this.cutOffNanos = System.nanoTime() + available.toNanos();
+        }
+
+        /**
+         * Arms the cut-off when an attempt has ended
+         */
+        synchronized void arm() {
+            interrupt = SCHEDULER.schedule(this::fire, cutOffNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Disarms the cut-off when an attempt starts or the execution ends, clearing the interrupt
+         * of the executing thread if the cut-off has fired, after which the thread is not interrupted
+         */
+        synchronized void disarm() {
+            if (interrupt != null) {
+                interrupt.cancel(false);
+                interrupt = null;
+            }
+            if (interruptPending) {
+                interruptPending = false;
+                Thread.interrupted();
+            }
+        }
+
+        synchronized boolean hasFired() {
+            return fired;
+        }
+
+        private synchronized void fire() {
+            if (interrupt != null) {
+                fired = true;
+                interruptPending = true;
+                thread.interrupt();
+            }
+        }
+
+        private static ScheduledThreadPoolExecutor newScheduler() {
+            final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+                final Thread thread = new Thread(r, "httpclient-retry-cut-off");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.setRemoveOnCancelPolicy(true);
+            return scheduler;
+        }
+    }
 }
@@ -0,0 +1,188 @@
+package dk.dbc.httpclient;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Connection statistics of a single host, identified by host name and port.
+ * <p>
+ * A connection is considered active from the start of a request until its response is closed, or its
+ * entity fully read, since the connector uses a connection of its own for each request in progress.
+ * Requests are pending while waiting for a connection when the number of connections per host is limited.
+ * New connections and TLS handshakes are only counted for HTTPS connections created through an SSLContext
+ * instrumented by {@link ConnectionStats#instrument(javax.net.ssl.SSLContext)}, other connections can not be
+ * observed through the connector.
+ * </p>
+ */
+public class HostStats {
+    private static final int WAIT_BUCKETS = 40;
+
+    private final String host;
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicInteger peakActive = new AtomicInteger();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong newConnections = new AtomicLong();
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong totalHandshakeNanos = new AtomicLong();
+    private final AtomicLong maxHandshakeNanos = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    // Bucket i counts waits of less than 2^i microseconds not counted by a lower bucket
+    private final AtomicLongArray waitBuckets = new AtomicLongArray(WAIT_BUCKETS);
+
+    HostStats(String host) {
+        this.host = host;
+    }
+
+    /**
+     * @return host name and port
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * @return number of connections in use
+     */
+    public int getActive() {
+        return active.get();
+    }
+
+    /**
+     * @return highest number of connections in use at the same time
+     */
+    public int getPeakActive() {
+        return peakActive.get();
+    }
+
+    /**
+     * @return number of requests waiting for a connection
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * @return number of requests having acquired a connection
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return number of new TLS connections
+     */
+    public long getNewConnections() {
+        return newConnections.get();
+    }
+
+    /**
+     * @return fraction of requests reusing a kept-alive connection, NaN if no requests have been made
+     * or new connections to this host can not be observed, i.e. it is not an HTTPS host of an instrumented client
+     */
+    public double getReuseRatio() {
+        final long requestCount = requests.get();
+        final long newConnectionCount = newConnections.get();
+        // The first request to an observed host always makes a new connection
+        if (requestCount == 0 || newConnectionCount == 0) {
+            return Double.NaN;
+        }
+        return Math.max(0, 1 - (double) newConnectionCount / requestCount);
+    }
+
+    /**
+     * @return number of TLS handshakes started by the connector and completed
+     */
+    public long getHandshakes() {
+        return handshakes.get();
+    }
+
+    public Duration getAverageHandshakeTime() {
+        final long count = handshakes.get();
+        return Duration.ofNanos(count == 0 ? 0 : totalHandshakeNanos.get() / count);
+    }
+
+    public Duration getMaxHandshakeTime() {
+        return Duration.ofNanos(maxHandshakeNanos.get());
+    }
+
+    public Duration getAverageWaitTime() {
+        final long count = requests.get();
+        return Duration.ofNanos(count == 0 ? 0 : totalWaitNanos.get() / count);
+    }
+
+    public Duration getMaxWaitTime() {
+        return Duration.ofNanos(maxWaitNanos.get());
+    }
+
+    /**
+     * @param percentile percentile between 0 and 100
+     * @return upper bound of the time waited for a connection by given percentile of the requests,
+     * with a precision of a factor two
+     */
+    public Duration getWaitTimePercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < WAIT_BUCKETS; i++) {
+            total += waitBuckets.get(i);
+        }
+        final long rank = (long) Math.ceil(total * percentile / 100);
+        long count = 0;
+        for (int i = 0; i < WAIT_BUCKETS; i++) {
+            count += waitBuckets.get(i);
+            if (count >= rank && count > 0) {
+                return Duration.ofNanos(Math.min(1000L << i, maxWaitNanos.get()));
+            }
+        }
+        return Duration.ZERO;
+    }
+
+    void waiting() {
+        pending.incrementAndGet();
+    }
+
+    void doneWaiting() {
+        pending.decrementAndGet();
+    }
+
+    void acquired(long waitNanos) {
+        requests.incrementAndGet();
+        peakActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+        totalWaitNanos.addAndGet(waitNanos);
+        maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+        final long micros = waitNanos / 1000;
+        final int bucket = micros == 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+        waitBuckets.incrementAndGet(Math.min(bucket, WAIT_BUCKETS - 1));
+    }
+
+    void released() {
+        active.decrementAndGet();
+    }
+
+    void newConnection() {
+        newConnections.incrementAndGet();
+    }
+
+    void handshake(long nanos) {
+        handshakes.incrementAndGet();
+        totalHandshakeNanos.addAndGet(nanos);
+        maxHandshakeNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    @Override
+    public String toString() {
+        return "HostStats{" +
+                "host='" + host + '\'' +
+                ", active=" + active +
+                ", peakActive=" + peakActive +
+                ", pending=" + pending +
+                ", requests=" + requests +
+                ", newConnections=" + newConnections +
+                ", averageWaitTime=" + getAverageWaitTime() +
+                ", maxWaitTime=" + getMaxWaitTime() +
+                ", averageHandshakeTime=" + getAverageHandshakeTime() +
+                '}';
+    }
+}
@@ -4,12 +4,43 @@ import dk.dbc.commons.useragent.UserAgent;
 import jakarta.ws.rs.ProcessingException;
 import jakarta.ws.rs.client.Client;
 import jakarta.ws.rs.client.ClientBuilder;
+import jakarta.ws.rs.client.Entity;
 import jakarta.ws.rs.client.Invocation;
 import jakarta.ws.rs.client.WebTarget;
+import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
+import org.brotli.dec.BrotliInputStream;
 import org.glassfish.jersey.client.ClientConfig;
+import org.glassfish.jersey.client.ClientProperties;
+import org.glassfish.jersey.client.HttpUrlConnectorProvider;
+import org.glassfish.jersey.client.RequestEntityProcessing;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.GZIPInputStream;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * This utility class provides convenience methods for accessing web resources via HTTP
@@ -18,6 +49,28 @@ public class HttpClient {
     protected final Client client;
 
     private final UserAgent userAgent;
+    private EntityCodec jsonCodec;
+    private Long maxCompressedBodySize;
+    private Long maxDecompressedBodySize;
+    private volatile boolean bodySizeLimitRegistered;
+    private DnsCache dnsCache;
+    private Tracing tracing;
+    private SlowRequestLog slowRequestLog;
+    private LeakDetector leakDetector;
+    private volatile boolean leakDetectionRegistered;
+    private DiskCache diskCache;
+    private volatile boolean diskCacheRegistered;
+    private ConnectionStats connectionStats;
+    private ConnectionLimiter connectionLimiter;
+    private Duration priorityAging = Duration.ofSeconds(1);
+    private volatile boolean connectionFilterRegistered;
+    private int smallBodySize;
+    private volatile boolean smallBodyFilterRegistered;
+    private boolean compression;
+    private volatile boolean decompressionRegistered;
+    private volatile boolean jsonCodecRegistered;
+    private Duration connectTimeout;
+    private Duration readTimeout;
 
     /**
      * Creates new HTTP client with default configuration
@@ -75,7 +128,9 @@ public class HttpClient {
      */
     public static Response doPost(HttpPost httpPost) {
         Invocation.Builder request = configureRequest(httpPost);
-        return request.post(httpPost.getEntity());
+        final Entity<?> entity = entityOf(httpPost, httpPost.getEntity());
+        setEntityProcessingOnRequest(entity, request);
+        return request.post(entity);
     }
 
     /**
@@ -85,7 +140,9 @@ public class HttpClient {
      */
     public static Response doPut(HttpPut httpPut) {
         Invocation.Builder request = configureRequest(httpPut);
-        return request.put(httpPut.getEntity());
+        final Entity<?> entity = entityOf(httpPut, httpPut.getEntity());
+        setEntityProcessingOnRequest(entity, request);
+        return request.put(entity);
     }
 
     /**
@@ -98,6 +155,19 @@ public class HttpClient {
         return request.delete();
     }
 
+    /**
+     * Creates publisher of the body of given response in chunks read on demand.
+     * The body is decompressed if compression is enabled and the response is closed
+     * when the body has been published, on failure and on cancellation.
+     * @param response server response
+     * @param chunkSize maximum size of each chunk
+     * @param executor executor reading the body
+     * @return single-subscriber publisher of body chunks
+     */
+    public static Flow.Publisher<ByteBuffer> bodyPublisher(Response response, int chunkSize, Executor executor) {
+        return new BodyPublisher(response, chunkSize, executor);
+    }
+
     /**
      * @return new web resources client
      */
@@ -138,26 +208,612 @@ public class HttpClient {
         return userAgent;
     }
 
+    /**
+     * Enables decompression of response bodies for requests of this client,
+     * other HTTP clients sharing the web resources client are not affected
+     * @return this client
+     */
     public HttpClient enableCompression() {
-        client.register(DecompressionInterceptor.class);
+        compression = true;
+        registerDecompression();
+        return this;
+    }
+
+    public boolean isCompressionEnabled() {
+        return compression;
+    }
+
+    /**
+     * Sets codec used for reading JSON response entities and writing JSON request entities
+     * instead of the MessageBodyReader/MessageBodyWriter providers of the client
+     * @param jsonCodec JSON codec (can be null to revert to the providers)
+     * @return this client
+     */
+    public HttpClient withJsonCodec(EntityCodec jsonCodec) {
+        this.jsonCodec = jsonCodec;
+        if (jsonCodec != null) {
+            registerJsonCodec();
+        }
+        return this;
+    }
+
+    public EntityCodec getJsonCodec() {
+        return jsonCodec;
+    }
+
+    /**
+     * Sets the client-wide maximum size of response bodies as received,
+     * reading is aborted with a {@link BodySizeLimitExceededException} when exceeded
+     * @param maxSize maximum size in bytes
+     * @return this client
+     */
+    public HttpClient withMaxCompressedBodySize(long maxSize) {
+        maxCompressedBodySize = maxSize;
+        registerBodySizeLimit();
+        return this;
+    }
+
+    /**
+     * Sets the client-wide maximum size of response bodies after decompression,
+     * reading is aborted with a {@link BodySizeLimitExceededException} when exceeded
+     * @param maxSize maximum size in bytes
+     * @return this client
+     */
+    public HttpClient withMaxDecompressedBodySize(long maxSize) {
+        maxDecompressedBodySize = maxSize;
+        registerBodySizeLimit();
+        return this;
+    }
+
+    public Long getMaxCompressedBodySize() {
+        return maxCompressedBodySize;
+    }
+
+    public Long getMaxDecompressedBodySize() {
+        return maxDecompressedBodySize;
+    }
+
+    /**
+     * Enables reading response bodies read by {@link #executeAndExpect(HttpRequest, Class)} up to given size
+     * in one go, returning the connection to the pool before the entity is decoded. Disabled by default.
+     * Responses of other clients sharing the web resources client are not affected.
+     * @param smallBodySize size in bytes, zero to read all bodies as a stream
+     * @return this client
+     */
+    public HttpClient withSmallBodySize(int smallBodySize) {
+        if (smallBodySize < 0) {
+            throw new IllegalArgumentException("smallBodySize can not be negative");
+        }
+        this.smallBodySize = smallBodySize;
+        if (smallBodySize > 0) {
+            registerSmallBodyFilter();
+        }
+        return this;
+    }
+
+    public int getSmallBodySize() {
+        return smallBodySize;
+    }
+
+    /**
+     * Enables tracing of request executions
+     * @param tracing tracing (can be null to disable tracing)
+     * @return this client
+     */
+    public HttpClient withTracing(Tracing tracing) {
+        this.tracing = tracing;
+        return this;
+    }
+
+    public Tracing getTracing() {
+        return tracing;
+    }
+
+    /**
+     * Enables detection of slow requests
+     * @param slowRequestLog slow request log (can be null to disable detection)
+     * @return this client
+     */
+    public HttpClient withSlowRequestLog(SlowRequestLog slowRequestLog) {
+        this.slowRequestLog = slowRequestLog;
+        return this;
+    }
+
+    public SlowRequestLog getSlowRequestLog() {
+        return slowRequestLog;
+    }
+
+    /**
+     * Enables detection of responses which are never closed
+     * @param leakDetector leak detector (can be null to disable detection)
+     * @return this client
+     */
+    public HttpClient withLeakDetector(LeakDetector leakDetector) {
+        this.leakDetector = leakDetector;
+        if (leakDetector != null) {
+            registerLeakDetection();
+        }
         return this;
     }
 
+    public LeakDetector getLeakDetector() {
+        return leakDetector;
+    }
+
+    /**
+     * Enables caching of GET responses on disk
+     * @param diskCache disk cache (can be null to disable caching)
+     * @return this client
+     */
+    public HttpClient withDiskCache(DiskCache diskCache) {
+        this.diskCache = diskCache;
+        if (diskCache != null) {
+            registerDiskCache();
+        }
+        return this;
+    }
+
+    public DiskCache getDiskCache() {
+        return diskCache;
+    }
+
+    /**
+     * Enables recording of connection statistics per host
+     * @param connectionStats connection statistics (can be null to disable recording)
+     * @return this client
+     */
+    public HttpClient withConnectionStats(ConnectionStats connectionStats) {
+        this.connectionStats = connectionStats;
+        if (connectionStats != null) {
+            registerConnectionFilter();
+        }
+        return this;
+    }
+
+    public ConnectionStats getConnectionStats() {
+        return connectionStats;
+    }
+
+    /**
+     * Limits the number of connections in use per host by this client, requests exceeding the limit
+     * wait for a connection by {@link HttpRequest#withPriority(Priority) priority} and then in order of arrival,
+     * until the deadline of the request if one is set.
+     * A connection is in use until the response is closed or its entity fully read.
+     * @param maxConnectionsPerHost maximum number of connections per host
+     * @return this client
+     */
+    public HttpClient withMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        return withMaxConnectionsPerHost(maxConnectionsPerHost, 0);
+    }
+
+    /**
+     * Limits the number of connections in use per host by this client reserving a fraction of them
+     * for requests of {@link Priority#HIGH high priority}, at least one connection is always left
+     * for other requests
+     * @param maxConnectionsPerHost maximum number of connections per host
+     * @param reservedForHighPriority fraction of the connections reserved, at least 0 and less than 1
+     * @return this client
+     * @see #withMaxConnectionsPerHost(int)
+     * @see #withPriorityAging(Duration)
+     */
+    public HttpClient withMaxConnectionsPerHost(int maxConnectionsPerHost, double reservedForHighPriority) {
+        this.connectionLimiter = new ConnectionLimiter(maxConnectionsPerHost, reservedForHighPriority);
+        registerConnectionFilter();
+        return this;
+    }
+
+    public Integer getMaxConnectionsPerHost() {
+        return connectionLimiter != null ? connectionLimiter.getMaxPerHost() : null;
+    }
+
+    /**
+     * Sets the time after which a request waiting for a connection is raised one level in priority,
+     * protecting requests of lower priority against starvation
+     * @param priorityAging aging period, one second by default, zero to disable aging
+     * @return this client
+     * @throws NullPointerException if given null-valued priorityAging
+     */
+    public HttpClient withPriorityAging(Duration priorityAging) throws NullPointerException {
+        if (priorityAging == null) {
+            throw new NullPointerException("priorityAging can not be null");
+        }
+        this.priorityAging = priorityAging;
+        return this;
+    }
+
+    public Duration getPriorityAging() {
+        return priorityAging;
+    }
+
+    /**
+     * Sets DNS cache used when resolving hosts during {@link #warmUp(List, int, Duration)}.
+     * The connector does not use the cache, it resolves hosts through the cache of the JVM.
+     * @param dnsCache DNS cache (can be null)
+     * @return this client
+     */
+    public HttpClient withDnsCache(DnsCache dnsCache) {
+        this.dnsCache = dnsCache;
+        return this;
+    }
+
+    public DnsCache getDnsCache() {
+        return dnsCache;
+    }
+
+    /**
+     * Warms up this client as by {@link #warmUp(List, int, Duration)} allowing 30 seconds
+     * @param baseUrls base URLs of the services to be called
+     * @param connectionsPerHost number of connections to open for each base URL
+     * @return number of successful warm-up requests
+     */
+    public int warmUp(List<String> baseUrls, int connectionsPerHost) {
+        return warmUp(baseUrls, connectionsPerHost, Duration.ofSeconds(30));
+    }
+
+    /**
+     * Warms up this client by resolving the hosts of given base URLs, opening connections to them
+     * by means of concurrent HEAD requests, which leaves the connections in the pool of the connector
+     * if keep-alive is supported, and loading the classes used for reading responses.
+     * <p>
+     * This method blocks until warm-up has finished or the timeout has passed, and may thus be used
+     * to delay readiness. Failures are tolerated, warm-up is a best effort, and requests not completed
+     * in time are cancelled.
+     * </p>
+     * @param baseUrls base URLs of the services to be called
+     * @param connectionsPerHost number of connections to open for each base URL
+     * @param timeout maximum time to spend on the warm-up requests
+     * @return number of successful warm-up requests
+     * @throws NullPointerException if given null-valued timeout
+     */
+    public int warmUp(List<String> baseUrls, int connectionsPerHost, Duration timeout) throws NullPointerException {
+        if (timeout == null) {
+            throw new NullPointerException("timeout can not be null");
+        }
+        preloadClasses();
+        final List<HttpHead> requests = new ArrayList<>();
+        for (String baseUrl : baseUrls) {
+            try {
+                resolve(URI.create(baseUrl).getHost());
+            } catch (IllegalArgumentException | UnknownHostException e) {
+                continue;
+            }
+            for (int i = 0; i < connectionsPerHost; i++) {
+                // The deadline bounds the connect and read timeouts of the request
+                requests.add(new HttpHead(this).withBaseUrl(baseUrl).withDeadline(timeout));
+            }
+        }
+        if (requests.isEmpty()) {
+            return 0;
+        }
+        final long deadline = System.nanoTime() + timeout.toNanos();
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(requests.size(), 32));
+        try {
+            final List<Future<Void>> responses = new ArrayList<>(requests.size());
+            for (HttpHead request : requests) {
+                // Calling the request directly bypasses any retries, the response is closed
+                // by the task so that it is not leaked if completing after the timeout
+                responses.add(executor.submit(() -> {
+                    request.call().close();
+                    return null;
+                }));
+            }
+            int succeeded = 0;
+            for (Future<Void> response : responses) {
+                try {
+                    response.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    succeeded++;
+                } catch (ExecutionException e) {
+                    // Best effort
+                } catch (TimeoutException e) {
+                    response.cancel(true);
+                }
+            }
+            return succeeded;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Sets the client-wide connect timeout used by requests not specifying their own.
+     * The web resources client, which may be shared by other HTTP clients, is left untouched.
+     * @param connectTimeout connect timeout
+     * @return this client
+     */
+    public HttpClient withConnectTimeout(Duration connectTimeout) {
+        this.connectTimeout = connectTimeout;
+        return this;
+    }
+
+    public Duration getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Sets the client-wide read timeout used by requests not specifying their own.
+     * The web resources client, which may be shared by other HTTP clients, is left untouched.
+     * @param readTimeout read timeout
+     * @return this client
+     */
+    public HttpClient withReadTimeout(Duration readTimeout) {
+        this.readTimeout = readTimeout;
+        return this;
+    }
+
+    public Duration getReadTimeout() {
+        return readTimeout;
+    }
+
     /**
      * Executes given HTTP request
      * @param request request
      * @return server response
      */
     public Response execute(HttpRequest<? extends HttpRequest<?>> request) {
+        if (tracing == null && slowRequestLog == null) {
+            return executeAttempt(request);
+        }
+        return observed(request, () -> executeAttempt(request));
+    }
+
+    /**
+     * Executes a single attempt of given HTTP request
+     * @param request request
+     * @return server response
+     */
+    Response executeAttempt(HttpRequest<? extends HttpRequest<?>> request) {
+        if (connectionLimiter == null && connectionStats == null && Execution.current(request) == null) {
+            // No state of the execution to keep, so no execution is created
+            try {
+                return request.call();
+            } catch (Exception e) {
+                throw asProcessingException(e);
+            }
+        }
+        final Execution execution = Execution.enter(request);
         try {
+            if (execution.span != null) {
+                execution.span.attempt();
+            }
+            if (connectionLimiter != null || connectionStats != null) {
+                execution.lease = ConnectionLease.acquire(request, connectionLimiter, priorityAging, connectionStats);
+            }
             return request.call();
         } catch (Exception e) {
-            if (!(e instanceof ProcessingException)) {
+            if (execution.lease != null) {
+                execution.lease.release();
+            }
+            throw asProcessingException(e);
+        } finally {
+            // The connection filter has taken over the lease of a response
+            execution.lease = null;
+            execution.exit();
+        }
+    }
+
+    private static ProcessingException asProcessingException(Exception e) {
+        return e instanceof ProcessingException ? (ProcessingException) e : new ProcessingException(e);
+    }
+
+    /**
+     * Executes given execution of given request in a span if tracing or slow request detection is enabled
+     * @param request request
+     * @param execution execution of the request, possibly consisting of several attempts
+     * @return server response
+     */
+    Response observed(HttpRequest<? extends HttpRequest<?>> request, Supplier<Response> execution) {
+        if (tracing == null && slowRequestLog == null) {
+            return execution.get();
+        }
+        final Execution context = Execution.enter(request);
+        if (context.span != null) {
+            try {
+                return execution.get();
+            } finally {
+                context.exit();
+            }
+        }
+        final Span span = tracing != null ? tracing.start(request) : Span.start(request, null, null, null, null);
+        context.span = span;
+        Response response = null;
+        RuntimeException failure = null;
+        try {
+            response = execution.get();
+            return response;
+        } catch (RuntimeException e) {
+            failure = e;
+            throw e;
+        } finally {
+            context.span = null;
+            context.exit();
+            span.end(response, failure);
+            if (tracing != null) {
+                tracing.export(span);
+            }
+            if (slowRequestLog != null) {
+                slowRequestLog.record(span);
+            }
+        }
+    }
+
+    /**
+     * Creates publisher executing given requests driven by the demand of its subscriber, with at most
+     * maxConcurrency requests executing at a time. Responses are published in order of completion
+     * and must be closed by the subscriber. A failing execution terminates the stream with an error.
+     * @param requests requests to execute, only iterated when the subscriber demands more responses
+     * @param maxConcurrency maximum number of concurrently executing requests
+     * @param executor executor of requests
+     * @return single-subscriber publisher of responses
+     */
+    public Flow.Publisher<Response> publisher(Iterator<? extends HttpRequest<? extends HttpRequest<?>>> requests,
+                                              int maxConcurrency, Executor executor) {
+        return new RequestPublisher<>(requests, this::execute, maxConcurrency, executor);
+    }
+
+    /**
+     * Creates publisher executing given requests driven by the demand of its subscriber, with at most
+     * maxConcurrency requests executing at a time, expecting a 200 OK status code and an entity of a
+     * specific type. Entities are published in order of completion. A failing execution, including an
+     * unexpected status code, terminates the stream with an error.
+     * @param requests requests to execute, only iterated when the subscriber demands more entities
+     * @param entityClass entity class
+     * @param maxConcurrency maximum number of concurrently executing requests
+     * @param executor executor of requests
+     * @param <T> entity type
+     * @return single-subscriber publisher of entities
+     */
+    public <T> Flow.Publisher<T> publisher(Iterator<? extends HttpRequest<? extends HttpRequest<?>>> requests,
+                                           Class<T> entityClass, int maxConcurrency, Executor executor) {
+        return new RequestPublisher<>(requests, request -> {
+            try {
+                return executeAndExpect(request, entityClass);
+            } catch (UnexpectedStatusCodeException e) {
+                e.close();
+                throw e;
+            }
+        }, maxConcurrency, executor);
+    }
+
+    /**
+     * Executes given HTTP GET request as a text/event-stream (Server-Sent Events), passing each event to
+     * given consumer as soon as it has been received. This method blocks until the stream ends.
+     * <p>
+     * The body is decompressed if compression is enabled. This client consumes a single connection, neither
+     * reconnecting when the stream ends nor waiting the reconnection time requested by the server, which
+     * are left to a {@link FailSafeHttpClient}, resuming from the last event id received. A 204 No Content
+     * response ends the stream, telling the client not to reconnect.
+     * </p>
+     * @param request request
+     * @param consumer consumer of events
+     * @throws UnexpectedStatusCodeException if the actual status code differs from 200 and 204, be advised that
+     * the attached response must be closed to avoid resource leaks
+     */
+    public void executeEventStream(HttpGet request, Consumer<ServerSentEvent> consumer)
+            throws UnexpectedStatusCodeException {
+        final Response response = executeEventStream(request, new EventStream(consumer));
+        if (!isEndOfEventStream(response)) {
+            throw new UnexpectedStatusCodeException(response.getStatus(), response, true);
+        }
+    }
+
+    /**
+     * Executes given HTTP GET request as a text/event-stream (Server-Sent Events), signalling given subscriber
+     * on the calling thread, which blocks until the stream ends. When the subscriber has no outstanding demand
+     * reading from the stream pauses, which pushes back on the server.
+     * @param request request
+     * @param subscriber subscriber of events
+     * @see #executeEventStream(HttpGet, Consumer)
+     */
+    public void executeEventStream(HttpGet request, Flow.Subscriber<? super ServerSentEvent> subscriber) {
+        final EventStreamSubscription subscription = new EventStreamSubscription(subscriber);
+        final EventStream eventStream = subscription.getEventStream();
+        subscriber.onSubscribe(subscription);
+        final Response response;
+        try {
+            response = executeEventStream(request, eventStream);
+        } catch (RuntimeException e) {
+            if (subscription.getInvalidRequest() != null) {
+                subscriber.onError(subscription.getInvalidRequest());
+            } else if (!eventStream.cancelled) {
+                subscriber.onError(e);
+            }
+            return;
+        }
+        if (subscription.getInvalidRequest() != null) {
+            subscriber.onError(subscription.getInvalidRequest());
+            return;
+        }
+        if (eventStream.cancelled) {
+            return;
+        }
+        if (!isEndOfEventStream(response)) {
+            subscriber.onError(new UnexpectedStatusCodeException(response.getStatus(), response, true));
+        } else {
+            subscriber.onComplete();
+        }
+    }
+
+    private static boolean isEndOfEventStream(Response response) {
+        return response.getStatus() == Response.Status.OK.getStatusCode()
+                || response.getStatus() == Response.Status.NO_CONTENT.getStatusCode();
+    }
+
+    /**
+     * Executes given event stream
+     * @param request request
+     * @param eventStream state of the event stream
+     * @return server response, closed
+     */
+    Response executeEventStream(HttpGet request, EventStream eventStream) {
+        return executeEventStreamAttempt(request, eventStream);
+    }
+
+    /**
+     * Executes a single connection of given event stream consuming events until the stream ends
+     * @param request request
+     * @param eventStream state of the event stream
+     * @return server response, closed
+     */
+    Response executeEventStreamAttempt(HttpGet request, EventStream eventStream) {
+        final Response response;
+        // The headers belong to this connection only, the request itself is left untouched
+        final Execution execution = Execution.enter(request);
+        try {
+            execution.setHeader("Accept", "text/event-stream");
+            if (eventStream.lastEventId != null) {
+                execution.setHeader(EventStream.LAST_EVENT_ID, eventStream.lastEventId);
+            }
+            response = executeAttempt(request);
+        } finally {
+            execution.exit();
+        }
+        if (response.getStatus() != Response.Status.OK.getStatusCode()) {
+            response.close();
+            return response;
+        }
+        try (InputStream in = response.readEntity(InputStream.class)) {
+            final EventStreamReader reader = new EventStreamReader(in, eventStream.lastEventId, eventStream.retry);
+            ServerSentEvent event;
+            while (!eventStream.cancelled && (event = reader.next()) != null) {
+                eventStream.lastEventId = reader.getLastEventId();
+                eventStream.retry = reader.getRetry();
+                eventStream.consumer.accept(event);
+            }
+            eventStream.retry = reader.getRetry();
+        } catch (IOException e) {
+            if (!eventStream.cancelled) {
                 throw new ProcessingException(e);
-            } else {
-                throw (ProcessingException) e;
             }
+        } finally {
+            response.close();
         }
+        return response;
+    }
+
+    /**
+     * Downloads the resource of given request to given file in byte ranges fetched in parallel
+     * @param request request for the resource
+     * @param target target file
+     * @param parallelism number of ranges fetched in parallel
+     * @see RangedDownload
+     */
+    public void download(HttpGet request, Path target, int parallelism) {
+        new RangedDownload(this).withParallelism(parallelism).download(request, target);
+    }
+
+    /**
+     * Fetches a single byte range of a download into given channel at given offset
+     * @param request range request
+     * @param channel channel of the target file
+     * @param offset offset of the range
+     * @param length length of the range
+     * @return server response, closed
+     */
+    Response downloadRange(HttpGet request, FileChannel channel, long offset, long length) {
+        return RangedDownload.fetchRange(this, request, channel, offset, length);
     }
 
     /**
@@ -172,11 +828,55 @@ public class HttpClient {
             throws UnexpectedStatusCodeException {
         Response response = execute(request);
         if (response.getStatus() != expectedStatus.getStatusCode()) {
-            throw new UnexpectedStatusCodeException(Response.Status.fromStatusCode(response.getStatus()), response);
+            throw new UnexpectedStatusCodeException(response.getStatus(), response, true);
+        }
+        return response;
+    }
+
+    /**
+     * Executes given HTTP request and expects one of a set of status codes.
+     * <p>
+     * Since the caller anticipates more than one outcome, the exception thrown for other status codes
+     * is created without a stack trace, making it cheap enough for frequent use.
+     * </p>
+     * @param request request
+     * @param expectedStatuses expected status codes, e.g. {@code Set.of(200, 404)}
+     * @return server response
+     * @throws UnexpectedStatusCodeException if the actual status code is not among the expected ones, be advised
+     * that the attached response must be closed to avoid resource leaks
+     */
+    public Response executeAndExpect(HttpRequest<? extends HttpRequest<?>> request, Set<Integer> expectedStatuses)
+            throws UnexpectedStatusCodeException {
+        final Response response = execute(request);
+        final int status = response.getStatus();
+        if (!expectedStatuses.contains(status)) {
+            throw new UnexpectedStatusCodeException(status, response, false);
         }
         return response;
     }
 
+    /**
+     * Executes given HTTP request and maps the response by the handler registered for its status code.
+     * The response is closed when the handler returns.
+     * @param request request
+     * @param handlers response handlers by status code, e.g.
+     *                 {@code Map.of(200, r -> r.readEntity(MyEntity.class), 404, r -> null)}
+     * @param <T> result type
+     * @return result of the handler
+     * @throws UnexpectedStatusCodeException if no handler is registered for the actual status code, be advised
+     * that the attached response must be closed to avoid resource leaks
+     */
+    public <T> T executeAndHandle(HttpRequest<? extends HttpRequest<?>> request,
+                                  Map<Integer, ? extends Function<Response, ? extends T>> handlers)
+            throws UnexpectedStatusCodeException {
+        final Response response = executeAndExpect(request, handlers.keySet());
+        try {
+            return handlers.get(response.getStatus()).apply(response);
+        } finally {
+            response.close();
+        }
+    }
+
     /**
      * Executes given HTTP request and expects a 200 OK status code
      * @param request request
@@ -200,9 +900,9 @@ public class HttpClient {
      */
     public <T> T executeAndExpect(HttpRequest<? extends HttpRequest<?>> request, Response.Status expectedStatus, Class<T> entityClass)
             throws UnexpectedStatusCodeException {
-        final Response response = executeAndExpect(request, expectedStatus);
+        final Response response = executeExpectingEntity(request, expectedStatus);
         try {
-            return response.readEntity(entityClass);
+            return readEntity(response, entityClass);
         } finally {
             response.close();
         }
@@ -225,6 +925,57 @@ public class HttpClient {
         return client;
     }
 
+    /**
+     * Executes given HTTP request whose entity is read before returning, reading small bodies in one go
+     * @param request request
+     * @param expectedStatus expected status code
+     * @return server response
+     * @see #withSmallBodySize(int)
+     */
+    Response executeExpectingEntity(HttpRequest<? extends HttpRequest<?>> request, Response.Status expectedStatus) {
+        if (smallBodySize <= 0 && Execution.current(request) == null) {
+            return executeAndExpect(request, expectedStatus);
+        }
+        final Execution execution = Execution.enter(request);
+        final int outerSmallBodySize = execution.smallBodySize;
+        execution.smallBodySize = smallBodySize;
+        try {
+            return executeAndExpect(request, expectedStatus);
+        } finally {
+            execution.smallBodySize = outerSmallBodySize;
+            execution.exit();
+        }
+    }
+
+    /**
+     * Reads entity from given response using the JSON codec if one is set and the response is JSON
+     * @param response server response
+     * @param entityClass entity class
+     * @param <T> entity type
+     * @return entity
+     */
+    <T> T readEntity(Response response, Class<T> entityClass) {
+        if (jsonCodec == null || !isJson(response.getMediaType()) || isRawType(entityClass)) {
+            return response.readEntity(entityClass);
+        }
+        // Reading as InputStream still applies reader interceptors such as the DecompressionInterceptor
+        try (InputStream in = response.readEntity(InputStream.class)) {
+            return jsonCodec.read(in, entityClass);
+        } catch (IOException e) {
+            throw new ProcessingException(e);
+        }
+    }
+
+    static boolean isJson(MediaType mediaType) {
+        return mediaType != null && ("json".equalsIgnoreCase(mediaType.getSubtype())
+                || mediaType.getSubtype().toLowerCase().endsWith("+json"));
+    }
+
+    static boolean isRawType(Class<?> entityClass) {
+        return entityClass == String.class || entityClass == byte[].class
+                || InputStream.class.isAssignableFrom(entityClass);
+    }
+
     private static void setHeadersOnRequest(Map<String, String> headers, Invocation.Builder request) {
         for (Map.Entry<String, String> entry : headers.entrySet()) {
             request.header(entry.getKey(), entry.getValue());
@@ -249,8 +1000,210 @@ public class HttpClient {
         WebTarget target = httpRequest.getHttpClient().getClient().target(httpRequest.getBaseUrl());
         target = setPathParametersOnWebTarget(httpRequest.getPathElements(), target);
         target = setQueryParametersOnWebTarget(httpRequest.queryParameters, target);
-        Invocation.Builder request = target.request();
+        Invocation.Builder request = newRequestWithBodySizeLimits(httpRequest, target);
         setHeadersOnRequest(httpRequest.getHeaders(), request);
+        if (httpRequest.getHttpClient().leakDetector != null) {
+            request.property(LeakDetectionFilter.LEAK_DETECTOR, httpRequest.getHttpClient().leakDetector);
+        }
+        if (httpRequest.getHttpClient().diskCache != null) {
+            request.property(DiskCacheFilter.DISK_CACHE, httpRequest.getHttpClient().diskCache);
+        }
+        if (httpRequest.getHttpClient().compression) {
+            request.property(DecompressionInterceptor.DECOMPRESSION, true);
+        }
+        if (httpRequest.getHttpClient().jsonCodec != null) {
+            request.property(JsonCodecInterceptor.JSON_CODEC, httpRequest.getHttpClient().jsonCodec);
+        }
+        final Execution execution = Execution.current(httpRequest);
+        if (execution != null) {
+            configureExecution(execution, request);
+        }
+        setTimeoutsOnRequest(httpRequest, request);
         return request;
     }
+
+    private static void configureExecution(Execution execution, Invocation.Builder request) {
+        if (execution.getHeaders() != null) {
+            for (Map.Entry<String, String> entry : execution.getHeaders().entrySet()) {
+                // Replaces any value set by the request
+                request.header(entry.getKey(), null);
+                request.header(entry.getKey(), entry.getValue());
+            }
+        }
+        if (execution.lease != null) {
+            request.property(ConnectionFilter.CONNECTION_LEASE, execution.lease);
+        }
+        if (execution.smallBodySize > 0) {
+            request.property(SmallBodyFilter.SMALL_BODY_SIZE, execution.smallBodySize);
+        }
+        if (execution.span != null && execution.span.getTraceId() != null) {
+            // Replaces any traceparent of the parent context set on the request
+            request.header(Tracing.TRACEPARENT, null);
+            request.header(Tracing.TRACEPARENT, Tracing.traceparent(execution.span));
+        }
+    }
+
+    private void resolve(String host) throws UnknownHostException {
+        if (host == null) {
+            throw new UnknownHostException("No host");
+        }
+        if (dnsCache != null) {
+            dnsCache.resolve(host);
+        } else {
+            InetAddress.getAllByName(host);
+        }
+    }
+
+    private static void preloadClasses() {
+        for (Class<?> c : List.of(Decompressor.class, DecompressionInterceptor.class, BodySizeLimitInterceptor.class,
+                BoundedInputStream.class, GZIPInputStream.class, BrotliInputStream.class)) {
+            try {
+                Class.forName(c.getName(), true, c.getClassLoader());
+            } catch (ClassNotFoundException e) {
+                // Can not happen for classes already referenced
+            }
+        }
+    }
+
+    private synchronized void registerDecompression() {
+        if (!decompressionRegistered) {
+            client.register(new DecompressionInterceptor(true));
+            decompressionRegistered = true;
+        }
+    }
+
+    private synchronized void registerJsonCodec() {
+        if (!jsonCodecRegistered) {
+            client.register(new JsonCodecInterceptor());
+            jsonCodecRegistered = true;
+        }
+    }
+
+    private synchronized void registerBodySizeLimit() {
+        if (!bodySizeLimitRegistered) {
+            client.register(BodySizeLimitInterceptor.class);
+            bodySizeLimitRegistered = true;
+        }
+    }
+
+    private synchronized void registerLeakDetection() {
+        if (!leakDetectionRegistered) {
+            client.register(LeakDetectionFilter.class);
+            leakDetectionRegistered = true;
+        }
+    }
+
+    private synchronized void registerConnectionFilter() {
+        if (!connectionFilterRegistered) {
+            client.register(ConnectionFilter.class);
+            connectionFilterRegistered = true;
+        }
+    }
+
+    private synchronized void registerSmallBodyFilter() {
+        if (!smallBodyFilterRegistered) {
+            client.register(SmallBodyFilter.class);
+            smallBodyFilterRegistered = true;
+        }
+    }
+
+    private synchronized void registerDiskCache() {
+        if (!diskCacheRegistered) {
+            client.register(DiskCacheFilter.class);
+            diskCacheRegistered = true;
+        }
+    }
+
+    private static Invocation.Builder newRequestWithBodySizeLimits(HttpRequest<?> httpRequest, WebTarget target) {
+        final HttpClient httpClient = httpRequest.getHttpClient();
+        final Long maxCompressedBodySize = httpRequest.getMaxCompressedBodySize() != null
+                ? httpRequest.getMaxCompressedBodySize() : httpClient.maxCompressedBodySize;
+        final Long maxDecompressedBodySize = httpRequest.getMaxDecompressedBodySize() != null
+                ? httpRequest.getMaxDecompressedBodySize() : httpClient.maxDecompressedBodySize;
+        if (maxCompressedBodySize == null && maxDecompressedBodySize == null) {
+            return target.request();
+        }
+        if (!httpClient.bodySizeLimitRegistered) {
+            target = target.register(BodySizeLimitInterceptor.class);
+        }
+        // Set as request properties since these are the ones visible to the reader interceptors
+        final Invocation.Builder request = target.request();
+        if (maxCompressedBodySize != null) {
+            request.property(BodySizeLimitInterceptor.MAX_COMPRESSED_BODY_SIZE, maxCompressedBodySize);
+        }
+        if (maxDecompressedBodySize != null) {
+            request.property(BodySizeLimitInterceptor.MAX_DECOMPRESSED_BODY_SIZE, maxDecompressedBodySize);
+        }
+        return request;
+    }
+
+    /**
+     * @return entity of given request, or the entity replacing it in the ongoing execution
+     */
+    private static Entity<?> entityOf(HttpRequest<?> httpRequest, Entity<?> entity) {
+        final Execution execution = Execution.current(httpRequest);
+        return execution != null && execution.entity != null ? execution.entity : entity;
+    }
+
+    private static void setEntityProcessingOnRequest(Entity<?> entity, Invocation.Builder request) {
+        // The entity would otherwise be buffered in memory by the connector, which ignores
+        // the Content-Length header unless told to stream with a fixed length
+        if (entity != null && entity.getEntity() instanceof MultipartBody multipartBody) {
+            // The length is taken from the body as it is now, parts may have been added since it was set
+            final long contentLength = multipartBody.getContentLength();
+            request.header("Content-Length", null);
+            if (contentLength < 0) {
+                request.property(ClientProperties.REQUEST_ENTITY_PROCESSING, RequestEntityProcessing.CHUNKED);
+            } else {
+                request.header("Content-Length", contentLength);
+                request.property(HttpUrlConnectorProvider.USE_FIXED_LENGTH_STREAMING, true);
+            }
+        }
+    }
+
+    private static void setTimeoutsOnRequest(HttpRequest<?> httpRequest, Invocation.Builder request) {
+        final HttpClient httpClient = httpRequest.getHttpClient();
+        final Duration connectTimeout = httpRequest.getConnectTimeout() != null
+                ? httpRequest.getConnectTimeout() : httpClient.connectTimeout;
+        final Duration readTimeout = httpRequest.getReadTimeout() != null
+                ? httpRequest.getReadTimeout() : httpClient.readTimeout;
+        final Duration remaining = httpRequest.getRemainingTime();
+        if (remaining == null) {
+            if (connectTimeout != null) {
+                request.property(ClientProperties.CONNECT_TIMEOUT, toTimeoutMillis(connectTimeout));
+            }
+            if (readTimeout != null) {
+                request.property(ClientProperties.READ_TIMEOUT, toTimeoutMillis(readTimeout));
+            }
+            return;
+        }
+        if (remaining.isNegative() || remaining.isZero()) {
+            throw new DeadlineExceededException("Deadline exceeded for " + httpRequest);
+        }
+        // Shorten each timeout to the time remaining until the deadline
+        final int remainingMillis = toTimeoutMillis(remaining);
+        request.property(ClientProperties.CONNECT_TIMEOUT, Math.min(remainingMillis,
+                effectiveTimeoutMillis(httpClient, connectTimeout, ClientProperties.CONNECT_TIMEOUT)));
+        request.property(ClientProperties.READ_TIMEOUT, Math.min(remainingMillis,
+                effectiveTimeoutMillis(httpClient, readTimeout, ClientProperties.READ_TIMEOUT)));
+    }
+
+    private static int effectiveTimeoutMillis(HttpClient httpClient, Duration timeout, String property) {
+        int timeoutMillis = 0;
+        if (timeout != null) {
+            timeoutMillis = toTimeoutMillis(timeout);
+        } else if (httpClient.getClient().getConfiguration().getProperty(property) instanceof Number value) {
+            timeoutMillis = value.intValue();
+        }
+        // A timeout of 0 is interpreted as infinity
+        return timeoutMillis > 0 ? timeoutMillis : Integer.MAX_VALUE;
+    }
+
+    private static int toTimeoutMillis(Duration duration) {
+        if (duration.isZero()) {
+            return 0;
+        }
+        // Round up so that sub-millisecond durations do not become infinite timeouts
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(1, duration.plusNanos(999_999).toMillis()));
+    }
 }
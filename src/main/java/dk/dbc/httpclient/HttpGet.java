@@ -2,6 +2,8 @@ package dk.dbc.httpclient;
 
 import jakarta.ws.rs.core.Response;
 import java.util.Arrays;
+import java.util.concurrent.Flow;
+import java.util.function.Consumer;
 
 /**
  * HTTP GET request representation
@@ -23,6 +25,24 @@ public class HttpGet extends HttpRequest<HttpGet> {
         super(httpClient);
     }
 
+    /**
+     * Executes this request as a text/event-stream (Server-Sent Events)
+     * @param consumer consumer of events
+     * @see HttpClient#executeEventStream(HttpGet, Consumer)
+     */
+    public void executeEventStream(Consumer<ServerSentEvent> consumer) {
+        httpClient.executeEventStream(this, consumer);
+    }
+
+    /**
+     * Executes this request as a text/event-stream (Server-Sent Events)
+     * @param subscriber subscriber of events
+     * @see HttpClient#executeEventStream(HttpGet, Flow.Subscriber)
+     */
+    public void executeEventStream(Flow.Subscriber<? super ServerSentEvent> subscriber) {
+        httpClient.executeEventStream(this, subscriber);
+    }
+
     @Override
     public Response call() {
         return HttpClient.doGet(this);
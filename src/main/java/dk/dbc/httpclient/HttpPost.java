@@ -1,7 +1,6 @@
 package dk.dbc.httpclient;
 
 import jakarta.ws.rs.client.Entity;
-import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import java.util.Arrays;
 
@@ -37,7 +36,18 @@ public class HttpPost extends HttpRequest<HttpPost> {
     }
 
     public <T> HttpPost withJsonData(T data) {
-        return withData(data, MediaType.APPLICATION_JSON);
+        this.entity = jsonEntity(data);
+        return this;
+    }
+
+    /**
+     * Sets streaming multipart/form-data body, with Content-Length if the sizes of all parts are known
+     * @param body multipart body
+     * @return this request
+     */
+    public HttpPost withMultipartData(MultipartBody body) {
+        this.entity = multipartEntity(body);
+        return this;
     }
 
     @Override
@@ -1,10 +1,16 @@
 package dk.dbc.httpclient;
 
+import jakarta.ws.rs.client.Entity;
+import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 
+import java.time.Duration;
+import java.time.Instant;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
 import java.util.concurrent.Callable;
 import java.util.stream.Stream;
 
@@ -19,6 +25,13 @@ public abstract class HttpRequest<T extends HttpRequest<T>> implements Callable<
     protected final Map<String, Object> queryParameters = new HashMap<>();
     protected String baseUrl;
     protected String[] pathElements = new String[] {};
+    protected String pathTemplate;
+    protected Duration connectTimeout;
+    protected Duration readTimeout;
+    protected Instant deadline;
+    protected Long maxCompressedBodySize;
+    protected Long maxDecompressedBodySize;
+    protected Priority priority = Priority.NORMAL;
 
     public HttpRequest(HttpClient httpClient) {
         this.httpClient = httpClient;
@@ -37,6 +50,14 @@ public abstract class HttpRequest<T extends HttpRequest<T>> implements Callable<
         return executeAndExpect(Response.Status.OK);
     }
 
+    public Response executeAndExpect(Set<Integer> expectedStatuses) {
+        return httpClient.executeAndExpect(this, expectedStatuses);
+    }
+
+    public <U> U executeAndHandle(Map<Integer, ? extends Function<Response, ? extends U>> handlers) {
+        return httpClient.executeAndHandle(this, handlers);
+    }
+
     public <U> U executeAndExpect(Response.Status expectedStatus, Class<U> entityClass) {
         return httpClient.executeAndExpect(this, expectedStatus, entityClass);
     }
@@ -83,9 +104,169 @@ public abstract class HttpRequest<T extends HttpRequest<T>> implements Callable<
 
     public T withPathElements(String... pathElements) {
         this.pathElements = pathElements;
+        this.pathTemplate = null;
         return (T) this;
     }
 
+    /**
+     * Sets path elements built by given path builder, retaining its
+     * path template for identifying the resource in traces and logs
+     * @param pathBuilder path builder
+     * @return this request
+     */
+    public T withPath(PathBuilder pathBuilder) {
+        withPathElements(pathBuilder.build());
+        this.pathTemplate = pathBuilder.getPathTemplate();
+        return (T) this;
+    }
+
+    /**
+     * @return path template of the path elements if known, otherwise null
+     */
+    public String getPathTemplate() {
+        return pathTemplate;
+    }
+
+    /**
+     * @return HTTP method of this request, by default derived from the class name
+     */
+    public String getMethod() {
+        final String name = getClass().getSimpleName();
+        return (name.startsWith("Http") ? name.substring(4) : name).toUpperCase();
+    }
+
+    public Duration getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Sets connect timeout for this request overriding any client-wide setting
+     * @param connectTimeout connect timeout
+     * @return this request
+     */
+    public T withConnectTimeout(Duration connectTimeout) {
+        this.connectTimeout = connectTimeout;
+        return (T) this;
+    }
+
+    public Duration getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * Sets read timeout for this request overriding any client-wide setting
+     * @param readTimeout read timeout
+     * @return this request
+     */
+    public T withReadTimeout(Duration readTimeout) {
+        this.readTimeout = readTimeout;
+        return (T) this;
+    }
+
+    public Instant getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Sets a total deadline for this request including any retry attempts.
+     * The read timeout of each attempt is shortened to the time remaining.
+     * @param deadline point in time after which no further attempts are made
+     * @return this request
+     */
+    public T withDeadline(Instant deadline) {
+        this.deadline = deadline;
+        return (T) this;
+    }
+
+    /**
+     * Sets a total deadline for this request relative to now
+     * @param timeout time allowed for the request including any retry attempts
+     * @return this request
+     * @see #withDeadline(Instant)
+     */
+    public T withDeadline(Duration timeout) {
+        return withDeadline(Instant.now().plus(timeout));
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * Sets the priority by which this request is given a connection
+     * when the number of connections per host is limited
+     * @param priority priority, {@link Priority#NORMAL} by default
+     * @return this request
+     * @throws NullPointerException if given null-valued priority
+     * @see HttpClient#withMaxConnectionsPerHost(int, double)
+     */
+    public T withPriority(Priority priority) throws NullPointerException {
+        if (priority == null) {
+            throw new NullPointerException("priority can not be null");
+        }
+        this.priority = priority;
+        return (T) this;
+    }
+
+    /**
+     * @return time remaining until the deadline of this request,
+     * or null if no deadline has been set
+     */
+    public Duration getRemainingTime() {
+        if (deadline == null) {
+            return null;
+        }
+        return Duration.between(Instant.now(), deadline);
+    }
+
+    public Long getMaxCompressedBodySize() {
+        return maxCompressedBodySize;
+    }
+
+    /**
+     * Sets maximum size of the response body as received overriding any client-wide setting
+     * @param maxSize maximum size in bytes
+     * @return this request
+     */
+    public T withMaxCompressedBodySize(long maxSize) {
+        this.maxCompressedBodySize = maxSize;
+        return (T) this;
+    }
+
+    public Long getMaxDecompressedBodySize() {
+        return maxDecompressedBodySize;
+    }
+
+    /**
+     * Sets maximum size of the response body after decompression overriding any client-wide setting
+     * @param maxSize maximum size in bytes
+     * @return this request
+     */
+    public T withMaxDecompressedBodySize(long maxSize) {
+        this.maxDecompressedBodySize = maxSize;
+        return (T) this;
+    }
+
+    /**
+     * Creates JSON entity from given data, written by the JSON codec of the client executing
+     * the request if one is set (see {@link JsonCodecInterceptor})
+     * @param data entity data
+     * @return JSON entity
+     */
+    protected Entity<?> jsonEntity(Object data) {
+        return Entity.entity(data, MediaType.APPLICATION_JSON);
+    }
+
+    /**
+     * Creates multipart/form-data entity streaming given body. Its Content-Length is determined
+     * from the parts of the body when the request is executed.
+     * @param body multipart body
+     * @return multipart entity
+     */
+    protected Entity<?> multipartEntity(MultipartBody body) {
+        return Entity.entity(body, body.getMediaType());
+    }
+
     public HttpClient getHttpClient() {
         return httpClient;
     }
@@ -110,6 +291,15 @@ public abstract class HttpRequest<T extends HttpRequest<T>> implements Callable<
         if (baseUrl != null ? !baseUrl.equals(that.baseUrl) : that.baseUrl != null) {
             return false;
         }
+        if (connectTimeout != null ? !connectTimeout.equals(that.connectTimeout) : that.connectTimeout != null) {
+            return false;
+        }
+        if (readTimeout != null ? !readTimeout.equals(that.readTimeout) : that.readTimeout != null) {
+            return false;
+        }
+        if (deadline != null ? !deadline.equals(that.deadline) : that.deadline != null) {
+            return false;
+        }
         // Probably incorrect - comparing Object[] arrays with Arrays.equals
         return Arrays.equals(pathElements, that.pathElements);
     }
@@ -120,6 +310,9 @@ public abstract class HttpRequest<T extends HttpRequest<T>> implements Callable<
         result = 31 * result + queryParameters.hashCode();
         result = 31 * result + (baseUrl != null ? baseUrl.hashCode() : 0);
         result = 31 * result + Arrays.hashCode(pathElements);
+        result = 31 * result + (connectTimeout != null ? connectTimeout.hashCode() : 0);
+        result = 31 * result + (readTimeout != null ? readTimeout.hashCode() : 0);
+        result = 31 * result + (deadline != null ? deadline.hashCode() : 0);
         return result;
     }
 }
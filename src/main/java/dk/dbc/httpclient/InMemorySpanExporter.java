@@ -0,0 +1,28 @@
+package dk.dbc.httpclient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Span exporter keeping exported spans in memory, intended for tests
+ */
+public class InMemorySpanExporter implements SpanExporter {
+    private final ConcurrentLinkedQueue<Span> spans = new ConcurrentLinkedQueue<>();
+
+    @Override
+    public void export(Span span) {
+        spans.add(span);
+    }
+
+    /**
+     * @return spans exported so far in order of export
+     */
+    public List<Span> getSpans() {
+        return new ArrayList<>(spans);
+    }
+
+    public void reset() {
+        spans.clear();
+    }
+}
@@ -0,0 +1,41 @@
+package dk.dbc.httpclient;
+
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.core.StreamingOutput;
+import jakarta.ws.rs.ext.WriterInterceptor;
+import jakarta.ws.rs.ext.WriterInterceptorContext;
+
+import java.io.IOException;
+
+/**
+ * Interceptor that writes JSON request entities by the {@link EntityCodec} given by the request property
+ * {@link #JSON_CODEC}, instead of the MessageBodyWriter looked up for the entity type.
+ *
+ * The entity of the request is left as the data object, so that it can still be inspected and compared.
+ * The codec is applied when the entity is written rather than by a MessageBodyWriter, since providers are
+ * registered for the web resources client, which may be shared by HTTP clients having different codecs,
+ * while the codec of the HTTP client executing the request is carried by the request.
+ *
+ * Raw entities, i.e. strings, byte arrays, input streams and streaming outputs, are written as they are.
+ *
+ * @see HttpClient#withJsonCodec(EntityCodec)
+ */
+class JsonCodecInterceptor implements WriterInterceptor {
+    static final String JSON_CODEC = "dk.dbc.httpclient.json-codec";
+
+    @Override
+    public void aroundWriteTo(WriterInterceptorContext context) throws IOException, WebApplicationException {
+        final Object codec = context.getProperty(JSON_CODEC);
+        if (!(codec instanceof EntityCodec) || !HttpClient.isJson(context.getMediaType())
+                || isRawType(context.getType())) {
+            context.proceed();
+            return;
+        }
+        // Writes to the stream of any preceding interceptors, e.g. encoding the request body
+        ((EntityCodec) codec).write(context.getEntity(), context.getOutputStream());
+    }
+
+    private static boolean isRawType(Class<?> type) {
+        return HttpClient.isRawType(type) || StreamingOutput.class.isAssignableFrom(type);
+    }
+}
@@ -0,0 +1,24 @@
+package dk.dbc.httpclient;
+
+import jakarta.ws.rs.client.ClientRequestContext;
+import jakarta.ws.rs.client.ClientResponseContext;
+import jakarta.ws.rs.client.ClientResponseFilter;
+
+/**
+ * Filter handing the entity stream of responses to the {@link LeakDetector}
+ * given by the request property {@link #LEAK_DETECTOR}
+ *
+ * @see HttpClient#withLeakDetector(LeakDetector)
+ */
+public class LeakDetectionFilter implements ClientResponseFilter {
+    public static final String LEAK_DETECTOR = "dk.dbc.httpclient.leakDetector";
+
+    @Override
+    public void filter(ClientRequestContext requestContext, ClientResponseContext responseContext) {
+        final Object leakDetector = requestContext.getProperty(LEAK_DETECTOR);
+        if (leakDetector instanceof LeakDetector && responseContext.hasEntity()) {
+            responseContext.setEntityStream(((LeakDetector) leakDetector).track(responseContext.getEntityStream(),
+                    requestContext.getMethod(), requestContext.getUri(), responseContext.getStatus()));
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package dk.dbc.httpclient;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.net.URI;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Detector of responses which are never closed, and thereby hold on to their connection.
+ * <p>
+ * The entity stream of every response with an entity is wrapped to count the responses still open.
+ * A sample of the responses is furthermore tracked by phantom references, recording the site where
+ * they were received, so that a response garbage collected without having been closed is reported
+ * to the sink as a {@link ResponseLeak} with the stack trace of that site. Reading the entity closes
+ * the response, except when reading it as an InputStream, which must then be closed instead.
+ * </p>
+ * <p>
+ * Collected references are processed by the threads receiving responses and when reading the leak count,
+ * so no thread of its own is needed.
+ * </p>
+ * <pre>
+ * {@code
+ * httpClient.withLeakDetector(new LeakDetector(0.01, leak -> LOGGER.error("Leaked response", leak)));
+ * }
+ * </pre>
+ */
+public class LeakDetector {
+    private final double sampleRate;
+    private final Consumer<ResponseLeak> sink;
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+    // Holds the trackers of open sampled responses, the phantom references must themselves be reachable
+    private final Set<Tracker> trackers = ConcurrentHashMap.newKeySet();
+    private final AtomicLong open = new AtomicLong();
+    private final AtomicLong leaked = new AtomicLong();
+
+    /**
+     * @param sampleRate fraction of responses tracked for leak reporting, between 0 and 1
+     * @param sink consumer of leak reports, called from the thread discovering the leak
+     * @throws NullPointerException if given null-valued sink
+     */
+    public LeakDetector(double sampleRate, Consumer<ResponseLeak> sink) throws NullPointerException {
+        if (sink == null) {
+            throw new NullPointerException("sink can not be null");
+        }
+        if (sampleRate < 0 || sampleRate > 1) {
+            throw new IllegalArgumentException("sampleRate must be between 0 and 1");
+        }
+        this.sampleRate = sampleRate;
+        this.sink = sink;
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * @return number of responses with an entity which have not been closed, including leaked ones
+     */
+    public long getOpen() {
+        return open.get();
+    }
+
+    /**
+     * @return number of sampled responses currently tracked for leaks
+     */
+    public int getTracked() {
+        return trackers.size();
+    }
+
+    /**
+     * Processes any collected responses before counting
+     * @return number of sampled responses found to have leaked
+     */
+    public long getLeaked() {
+        poll();
+        return leaked.get();
+    }
+
+    /**
+     * Wraps given entity stream to detect whether it is closed
+     * @param entityStream entity stream of response
+     * @param method request method
+     * @param uri request URI
+     * @param status response status code
+     * @return wrapped entity stream
+     */
+    InputStream track(InputStream entityStream, String method, URI uri, int status) {
+        poll();
+        open.incrementAndGet();
+        final TrackedInputStream tracked = new TrackedInputStream(entityStream);
+        if (sampleRate > 0 && (sampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < sampleRate)) {
+            tracked.tracker = new Tracker(tracked, queue, new ResponseLeak(method, uri, status));
+            trackers.add(tracked.tracker);
+        }
+        return tracked;
+    }
+
+    private void poll() {
+        Reference<?> reference;
+        while ((reference = queue.poll()) != null) {
+            final Tracker tracker = (Tracker) reference;
+            if (trackers.remove(tracker)) {
+                leaked.incrementAndGet();
+                try {
+                    sink.accept(tracker.leak);
+                } catch (RuntimeException e) {
+                    // A failing sink must not fail the request
+                }
+            }
+        }
+    }
+
+    private static class Tracker extends PhantomReference<Object> {
+        private final ResponseLeak leak;
+
+        Tracker(Object referent, ReferenceQueue<Object> queue, ResponseLeak leak) {
+            super(referent, queue);
+            this.leak = leak;
+        }
+    }
+
+    private class TrackedInputStream extends FilterInputStream {
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private Tracker tracker;
+
+        TrackedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (closed.compareAndSet(false, true)) {
+                    open.decrementAndGet();
+                    if (tracker != null) {
+                        trackers.remove(tracker);
+                        tracker.clear();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package dk.dbc.httpclient;
+
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.StreamingOutput;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Streaming multipart/form-data request body.
+ * <p>
+ * Parts are written one at a time while the request is sent, file parts being transferred
+ * from their {@link FileChannel} rather than read into the heap, so memory use is constant
+ * regardless of the size of the files. When the sizes of all parts are known the
+ * Content-Length is computed up front and the body is sent in fixed-length streaming mode,
+ * otherwise it is sent chunked. A file must not change size between being added and being sent.
+ * </p>
+ * <pre>
+ * {@code
+ * final HttpPost httpPost = new HttpPost(httpClient)
+ *          .withBaseUrl("http://localhost:8080")
+ *          .withPathElements("upload")
+ *          .withMultipartData(new MultipartBody()
+ *              .withTextPart("title", "Annual report")
+ *              .withFilePart("file", Path.of("report.pdf"), "application/pdf"));
+ * }
+ * </pre>
+ */
+public class MultipartBody implements StreamingOutput {
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DASHES = "--".getBytes(StandardCharsets.US_ASCII);
+
+    private final String boundary = "dbc-" + UUID.randomUUID();
+    private final List<Part> parts = new ArrayList<>();
+
+    /**
+     * @param name field name
+     * @param value field value
+     * @return this body
+     */
+    public MultipartBody withTextPart(String name, String value) {
+        return withBytesPart(name, null, value.getBytes(StandardCharsets.UTF_8), MediaType.TEXT_PLAIN + ";charset=UTF-8");
+    }
+
+    /**
+     * @param name field name
+     * @param filename file name or null
+     * @param content part content
+     * @param contentType media type of content
+     * @return this body
+     */
+    public MultipartBody withBytesPart(String name, String filename, byte[] content, String contentType) {
+        parts.add(new Part(headers(name, filename, contentType), content.length, out -> out.write(content)));
+        return this;
+    }
+
+    /**
+     * @param name field name
+     * @param file file to be transferred, its name is used as file name
+     * @param contentType media type of file
+     * @return this body
+     * @throws UncheckedIOException if the size of the file can not be determined
+     */
+    public MultipartBody withFilePart(String name, Path file, String contentType) {
+        final long size;
+        try {
+            size = Files.size(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        parts.add(new Part(headers(name, file.getFileName().toString(), contentType), size, out -> transfer(file, size, out)));
+        return this;
+    }
+
+    /**
+     * Adds part of unknown size, which causes the body to be sent chunked
+     * @param name field name
+     * @param filename file name or null
+     * @param content part content, closed when written
+     * @param contentType media type of content
+     * @return this body
+     */
+    public MultipartBody withStreamPart(String name, String filename, InputStream content, String contentType) {
+        parts.add(new Part(headers(name, filename, contentType), -1, out -> {
+            try (content) {
+                content.transferTo(out);
+            }
+        }));
+        return this;
+    }
+
+    /**
+     * @return media type including boundary
+     */
+    public String getMediaType() {
+        return "multipart/form-data; boundary=" + boundary;
+    }
+
+    /**
+     * @return length of the body in bytes, or -1 if the size of any part is unknown
+     */
+    public long getContentLength() {
+        final byte[] boundaryBytes = boundary.getBytes(StandardCharsets.US_ASCII);
+        long length = 0;
+        for (Part part : parts) {
+            if (part.size < 0) {
+                return -1;
+            }
+            length += DASHES.length + boundaryBytes.length + CRLF.length + part.headers.length + part.size + CRLF.length;
+        }
+        return length + DASHES.length + boundaryBytes.length + DASHES.length + CRLF.length;
+    }
+
+    @Override
+    public void write(OutputStream out) throws IOException, WebApplicationException {
+        final byte[] boundaryBytes = boundary.getBytes(StandardCharsets.US_ASCII);
+        for (Part part : parts) {
+            out.write(DASHES);
+            out.write(boundaryBytes);
+            out.write(CRLF);
+            out.write(part.headers);
+            part.content.writeTo(out);
+            out.write(CRLF);
+        }
+        out.write(DASHES);
+        out.write(boundaryBytes);
+        out.write(DASHES);
+        out.write(CRLF);
+        out.flush();
+    }
+
+    private static void transfer(Path file, long size, OutputStream out) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // The connectors only expose an OutputStream, transferTo lets the JDK pick the cheapest copy
+            final WritableByteChannel target = Channels.newChannel(out);
+            long position = 0;
+            while (position < size) {
+                final long transferred = channel.transferTo(position, size - position, target);
+                if (transferred <= 0) {
+                    throw new IOException("File " + file + " shrank while being sent");
+                }
+                position += transferred;
+            }
+        }
+    }
+
+    private static byte[] headers(String name, String filename, String contentType) {
+        final StringBuilder headers = new StringBuilder("Content-Disposition: form-data; name=\"")
+                .append(escape(name)).append('"');
+        if (filename != null) {
+            headers.append("; filename=\"").append(escape(filename)).append('"');
+        }
+        headers.append("\r\n");
+        if (contentType != null) {
+            headers.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+        return headers.append("\r\n").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String escape(String value) {
+        return value.replace("\"", "%22").replace("\r", "%0D").replace("\n", "%0A");
+    }
+
+    private interface Content {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private record Part(byte[] headers, long size, Content content) {}
+}
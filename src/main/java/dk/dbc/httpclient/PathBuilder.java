@@ -28,6 +28,10 @@ public class PathBuilder {
         variables = new HashMap<>();
     }
 
+    public String getPathTemplate() {
+        return pathTemplate;
+    }
+
     /**
      * Binds path variable to value
      *
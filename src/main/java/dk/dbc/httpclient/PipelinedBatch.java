@@ -0,0 +1,644 @@
+package dk.dbc.httpclient;
+
+import jakarta.ws.rs.core.Configuration;
+import org.glassfish.jersey.client.ClientProperties;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Opt-in bulk mode pipelining many idempotent requests to the same server over a small number of
+ * persistent HTTP/1.1 connections, so that the round trip time is not paid for each request.
+ * <p>
+ * Requests are distributed over the connections and each connection keeps up to a maximum number of
+ * requests in flight, matching responses to requests in order. Requests not answered when a connection
+ * is closed by the server or fails are sent again on a new connection, giving up after a maximum number
+ * of consecutive connections answering none of them.
+ * </p>
+ * <p>
+ * HTTP/1.1 pipelining is not supported by the Jersey connectors, so the requests are sent on sockets of
+ * their own, bypassing the connector and its interceptors. Only HEAD and GET requests with the same
+ * scheme, host and port are allowed, their headers (including User-Agent) and query parameters are sent
+ * as given, and bodies are decompressed if the request asked for compression. The server must support
+ * pipelining, which many servers and proxies do not.
+ * </p>
+ * <p>
+ * The settings of the client apply to the sockets as well: HTTPS connections use its SSLContext and
+ * HostnameVerifier, verifying the host name of the server by default, connections go through the proxy
+ * given by {@link ClientProperties#PROXY_URI} or the default proxy selector, the connect and read timeouts
+ * of the client apply unless overridden by {@link #withTimeout(Duration)}, and so do the limits on the
+ * size of response bodies.
+ * </p>
+ * <pre>
+ * {@code
+ * final List<PipelinedResponse> responses = new PipelinedBatch(httpClient)
+ *          .withConnections(2)
+ *          .withMaxInFlight(32)
+ *          .execute(lookups);
+ * }
+ * </pre>
+ */
+public class PipelinedBatch {
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    // Largest body fitting in an array
+    private static final long MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    private final HttpClient httpClient;
+    private int connections = 2;
+    private int maxInFlight = 16;
+    private int maxReconnects = 3;
+    private Duration timeout;
+
+    public PipelinedBatch(HttpClient httpClient) throws NullPointerException {
+        if (httpClient == null) {
+            throw new NullPointerException("httpClient can not be null");
+        }
+        this.httpClient = httpClient;
+    }
+
+    /**
+     * @param connections number of persistent connections to use
+     * @return this batch
+     */
+    public PipelinedBatch withConnections(int connections) {
+        if (connections <= 0) {
+            throw new IllegalArgumentException("connections must be positive");
+        }
+        this.connections = connections;
+        return this;
+    }
+
+    /**
+     * @param maxInFlight maximum number of requests sent but not yet answered on each connection
+     * @return this batch
+     */
+    public PipelinedBatch withMaxInFlight(int maxInFlight) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    /**
+     * @param maxReconnects maximum number of consecutive times each connection is reopened without
+     *                      any of the unanswered requests being answered
+     * @return this batch
+     */
+    public PipelinedBatch withMaxReconnects(int maxReconnects) {
+        this.maxReconnects = maxReconnects;
+        return this;
+    }
+
+    /**
+     * @param timeout connect and read timeout of each connection, overriding the timeouts of the client
+     *                which apply by default
+     * @return this batch
+     */
+    public PipelinedBatch withTimeout(Duration timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    /**
+     * Executes given requests, blocking until all have been answered or have failed
+     * @param requests HEAD and GET requests to the same scheme, host and port
+     * @return results in the order of the given requests
+     * @throws IllegalArgumentException if given requests of other methods, to different servers
+     * or having headers containing CR or LF
+     */
+    public List<PipelinedResponse> execute(List<? extends HttpRequest<?>> requests) throws IllegalArgumentException {
+        if (requests.isEmpty()) {
+            return List.of();
+        }
+        final URI server = URI.create(requests.get(0).getBaseUrl());
+        final Connector connector = new Connector(server);
+        final List<Exchange> exchanges = new ArrayList<>(requests.size());
+        for (HttpRequest<?> request : requests) {
+            final String method = request.getMethod();
+            if (!"GET".equals(method) && !"HEAD".equals(method)) {
+                throw new IllegalArgumentException("Only idempotent GET and HEAD requests can be pipelined, got " + method);
+            }
+            final URI uri = URI.create(request.getBaseUrl());
+            if (!server.getScheme().equalsIgnoreCase(uri.getScheme())
+                    || !server.getHost().equalsIgnoreCase(uri.getHost()) || server.getPort() != uri.getPort()) {
+                throw new IllegalArgumentException("All requests must be to " + server.getScheme() + "://"
+                        + server.getHost() + ":" + server.getPort() + ", got " + request.getBaseUrl());
+            }
+            exchanges.add(new Exchange(request, encode(request, uri, connector)));
+        }
+        final int connectionCount = Math.min(connections, exchanges.size());
+        final List<List<Exchange>> partitions = new ArrayList<>(connectionCount);
+        for (int i = 0; i < connectionCount; i++) {
+            partitions.add(new ArrayList<>());
+        }
+        for (int i = 0; i < exchanges.size(); i++) {
+            partitions.get(i % connectionCount).add(exchanges.get(i));
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(connectionCount);
+        final List<Future<?>> futures = new ArrayList<>(connectionCount);
+        for (List<Exchange> partition : partitions) {
+            futures.add(executor.submit(() -> runConnection(connector, partition)));
+        }
+        // Lets the connections run to completion
+        executor.shutdown();
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    // Aborts the connections, each failing the requests it has not yet answered
+                    interrupted = true;
+                    connector.cancel();
+                } catch (ExecutionException e) {
+                    // Failures are recorded per exchange
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        final List<PipelinedResponse> results = new ArrayList<>(exchanges.size());
+        for (Exchange exchange : exchanges) {
+            results.add(exchange.result != null
+                    ? exchange.result : new PipelinedResponse(new IOException("Request was not answered")));
+        }
+        return results;
+    }
+
+    private void runConnection(Connector connector, List<Exchange> exchanges) {
+        final LinkedList<Exchange> pending = new LinkedList<>(exchanges);
+        Exception lastFailure = null;
+        try {
+            // Connections answering at least one request do not count against the maximum number of reconnects
+            int reconnects = 0;
+            while (!pending.isEmpty() && reconnects <= maxReconnects && !connector.cancelled) {
+                final int unanswered = pending.size();
+                try {
+                    final Socket socket = connector.connect();
+                    try {
+                        lastFailure = null;
+                        exchange(socket, pending);
+                    } finally {
+                        connector.close(socket);
+                    }
+                } catch (IOException e) {
+                    lastFailure = e;
+                }
+                reconnects = pending.size() < unanswered ? 0 : reconnects + 1;
+            }
+        } catch (RuntimeException e) {
+            lastFailure = e;
+        } finally {
+            for (Exchange exchange : pending) {
+                exchange.result = new PipelinedResponse(lastFailure != null ? lastFailure
+                        : new IOException(connector.cancelled ? "Batch was interrupted"
+                        : "Connection closed by server " + (maxReconnects + 1) + " times without answering"));
+            }
+        }
+    }
+
+    // Sends pending requests keeping up to maxInFlight unanswered, removing each exchange when answered
+    private void exchange(Socket socket, LinkedList<Exchange> pending) throws IOException {
+        final OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+        final InputStream in = new BufferedInputStream(socket.getInputStream());
+        int sent = 0;
+        while (!pending.isEmpty()) {
+            while (sent < pending.size() && sent < maxInFlight) {
+                out.write(pending.get(sent++).encoded);
+            }
+            out.flush();
+            final Exchange exchange = pending.getFirst();
+            final boolean keepAlive = readResponse(in, exchange);
+            pending.removeFirst();
+            sent--;
+            if (!keepAlive) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads response of given exchange, recording a failure if its body exceeds the size limits
+     * @return true if the connection may be kept alive
+     */
+    private boolean readResponse(InputStream in, Exchange exchange) throws IOException {
+        String statusLine;
+        int status;
+        Map<String, List<String>> headers;
+        do {
+            statusLine = readLine(in);
+            status = parseStatus(statusLine);
+            headers = readHeaders(in);
+        } while (status >= 100 && status < 200);
+        final String transferEncoding = first(headers, "Transfer-Encoding");
+        final String contentLength = first(headers, "Content-Length");
+        final String contentEncoding = first(headers, "Content-Encoding");
+        final Decompressor decompressor = contentEncoding == null ? null : Decompressor.from(contentEncoding.trim());
+        final boolean decompress = decompressor != null && exchange.request.getHeaders().containsKey("Accept-Encoding");
+        final long maxDecompressedSize = maxSize(exchange.request.getMaxDecompressedBodySize(),
+                httpClient.getMaxDecompressedBodySize());
+        long maxSize = maxSize(exchange.request.getMaxCompressedBodySize(), httpClient.getMaxCompressedBodySize());
+        if (!decompress) {
+            maxSize = Math.min(maxSize, maxDecompressedSize);
+        }
+        boolean keepAlive = !"close".equalsIgnoreCase(first(headers, "Connection"))
+                && !statusLine.startsWith("HTTP/1.0");
+        byte[] body;
+        try {
+            if ("HEAD".equals(exchange.request.getMethod()) || status == 204 || status == 304) {
+                body = new byte[0];
+            } else if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked")) {
+                body = readChunked(in, maxSize);
+            } else if (contentLength != null) {
+                final long length = parseLength(contentLength, 10);
+                if (length > maxSize) {
+                    throw new BodySizeLimitExceededException("Response body of Content-Length " + length, maxSize);
+                }
+                body = in.readNBytes((int) length);
+                if (body.length != length) {
+                    throw new EOFException("Connection closed before end of body");
+                }
+            } else {
+                body = in.readNBytes((int) maxSize + 1);
+                if (body.length > maxSize) {
+                    throw new BodySizeLimitExceededException("Response body", maxSize);
+                }
+                keepAlive = false;
+            }
+        } catch (BodySizeLimitExceededException e) {
+            // The rest of the body is left unread, so the connection can not be reused
+            exchange.result = new PipelinedResponse(e);
+            return false;
+        }
+        if (decompress && body.length > 0) {
+            try (InputStream decompressed = new BoundedInputStream(decompressor.streamer.apply(
+                    new ByteArrayInputStream(body)), maxDecompressedSize, "Decompressed response body")) {
+                body = decompressed.readAllBytes();
+            } catch (BodySizeLimitExceededException e) {
+                exchange.result = new PipelinedResponse(e);
+                return keepAlive;
+            }
+        }
+        exchange.result = new PipelinedResponse(status, headers, body);
+        return keepAlive;
+    }
+
+    private static byte[] readChunked(InputStream in, long maxSize) throws IOException {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        while (true) {
+            final String sizeLine = readLine(in);
+            final int extension = sizeLine.indexOf(';');
+            final long size = parseLength(extension < 0 ? sizeLine : sizeLine.substring(0, extension), 16);
+            if (size == 0) {
+                // Trailers are discarded
+                readHeaders(in);
+                return body.toByteArray();
+            }
+            if (body.size() + size > maxSize) {
+                throw new BodySizeLimitExceededException("Chunked response body", maxSize);
+            }
+            final byte[] chunk = in.readNBytes((int) size);
+            if (chunk.length != size) {
+                throw new EOFException("Connection closed before end of chunk");
+            }
+            body.write(chunk);
+            readLine(in);
+        }
+    }
+
+    private static int parseStatus(String statusLine) throws IOException {
+        final String[] statusParts = statusLine.split(" ", 3);
+        if (statusParts.length < 2 || !statusParts[0].startsWith("HTTP/")) {
+            throw new IOException("Malformed status line: " + statusLine);
+        }
+        try {
+            return Integer.parseInt(statusParts[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed status line: " + statusLine);
+        }
+    }
+
+    private static long parseLength(String value, int radix) throws IOException {
+        try {
+            final long length = Long.parseLong(value.trim(), radix);
+            if (length < 0) {
+                throw new IOException("Negative length: " + value);
+            }
+            return length;
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed length: " + value);
+        }
+    }
+
+    private static long maxSize(Long requestMaxSize, Long clientMaxSize) {
+        final Long maxSize = requestMaxSize != null ? requestMaxSize : clientMaxSize;
+        return maxSize != null ? Math.min(maxSize, MAX_ARRAY_SIZE) : MAX_ARRAY_SIZE;
+    }
+
+    private static Map<String, List<String>> readHeaders(InputStream in) throws IOException {
+        final Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        String line;
+        while (!(line = readLine(in)).isEmpty()) {
+            final int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.computeIfAbsent(line.substring(0, colon).trim(), k -> new ArrayList<>())
+                        .add(line.substring(colon + 1).trim());
+            }
+        }
+        return headers;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new EOFException("Connection closed");
+            }
+            if (c != '\r') {
+                if (line.length() == MAX_LINE_LENGTH) {
+                    throw new IOException("Line too long");
+                }
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    private static String first(Map<String, List<String>> headers, String name) {
+        final List<String> values = headers.get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    private static byte[] encode(HttpRequest<?> request, URI baseUri, Connector connector) {
+        final StringBuilder target = new StringBuilder(baseUri.getRawPath() == null ? "" : baseUri.getRawPath());
+        for (String pathElement : request.getPathElements()) {
+            if (pathElement.isEmpty()) {
+                continue;
+            }
+            if (target.length() == 0 || target.charAt(target.length() - 1) != '/') {
+                target.append('/');
+            }
+            target.append(encodePathElement(pathElement));
+        }
+        if (target.length() == 0) {
+            target.append('/');
+        }
+        if (connector.absoluteForm) {
+            // Requests sent to a proxy carry the absolute URI
+            target.insert(0, baseUri.getScheme() + "://" + baseUri.getRawAuthority());
+        }
+        char separator = '?';
+        for (Map.Entry<String, Object> queryParameter : request.getQueryParameters().entrySet()) {
+            target.append(separator)
+                    .append(URLEncoder.encode(queryParameter.getKey(), StandardCharsets.UTF_8)).append('=')
+                    .append(URLEncoder.encode(String.valueOf(queryParameter.getValue()), StandardCharsets.UTF_8));
+            separator = '&';
+        }
+        final StringBuilder message = new StringBuilder(request.getMethod()).append(' ').append(target)
+                .append(" HTTP/1.1\r\nHost: ").append(baseUri.getHost());
+        if (baseUri.getPort() >= 0) {
+            message.append(':').append(baseUri.getPort());
+        }
+        message.append("\r\n");
+        if (connector.absoluteForm && connector.proxyAuthorization != null) {
+            message.append("Proxy-Authorization: ").append(connector.proxyAuthorization).append("\r\n");
+        }
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            // Line breaks would let a header smuggle further headers or requests into the pipeline
+            if (hasLineBreak(header.getKey()) || hasLineBreak(header.getValue())) {
+                throw new IllegalArgumentException("Header " + header.getKey().strip() + " contains CR or LF");
+            }
+            message.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        return message.append("\r\n").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static boolean hasLineBreak(String value) {
+        return value != null && (value.indexOf('\r') >= 0 || value.indexOf('\n') >= 0);
+    }
+
+    // Percent-encodes characters not allowed in a path segment, preserving existing percent-encoded octets
+    private static String encodePathElement(String pathElement) {
+        final StringBuilder encoded = new StringBuilder(pathElement.length());
+        final byte[] bytes = pathElement.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < bytes.length; i++) {
+            final int b = bytes[i] & 0xff;
+            if (b >= 'a' && b <= 'z' || b >= 'A' && b <= 'Z' || b >= '0' && b <= '9'
+                    || "-._~!$&'()*+,;=:@".indexOf(b) >= 0
+                    || b == '%' && i + 2 < bytes.length && isHex(bytes[i + 1]) && isHex(bytes[i + 2])) {
+                encoded.append((char) b);
+            } else {
+                encoded.append('%').append(Character.toUpperCase(Character.forDigit(b >> 4, 16)))
+                        .append(Character.toUpperCase(Character.forDigit(b & 0xf, 16)));
+            }
+        }
+        return encoded.toString();
+    }
+
+    private static boolean isHex(byte b) {
+        return Character.digit(b, 16) >= 0;
+    }
+
+    /**
+     * Opens the connections to the server as configured by the client
+     */
+    private class Connector {
+        private final String host;
+        private final int port;
+        private final boolean https;
+        // HTTP proxy to connect through, or null to connect directly
+        private final InetSocketAddress proxy;
+        private final String proxyAuthorization;
+        private final boolean absoluteForm;
+        private final int connectTimeoutMillis;
+        private final int readTimeoutMillis;
+        private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+        private volatile boolean cancelled;
+
+        Connector(URI server) {
+            https = "https".equalsIgnoreCase(server.getScheme());
+            host = server.getHost();
+            port = server.getPort() >= 0 ? server.getPort() : https ? 443 : 80;
+            final Configuration configuration = httpClient.getClient().getConfiguration();
+            final Object proxyUri = configuration.getProperty(ClientProperties.PROXY_URI);
+            if (proxyUri != null) {
+                final URI uri = proxyUri instanceof URI ? (URI) proxyUri : URI.create(proxyUri.toString());
+                proxy = InetSocketAddress.createUnresolved(uri.getHost(), uri.getPort() >= 0 ? uri.getPort() : 80);
+                final Object username = configuration.getProperty(ClientProperties.PROXY_USERNAME);
+                final Object password = configuration.getProperty(ClientProperties.PROXY_PASSWORD);
+                proxyAuthorization = username == null ? null : "Basic " + Base64.getEncoder().encodeToString(
+                        (username + ":" + (password == null ? "" : password)).getBytes(StandardCharsets.UTF_8));
+            } else {
+                proxy = selectProxy(server);
+                proxyAuthorization = null;
+            }
+            absoluteForm = proxy != null && !https;
+            connectTimeoutMillis = timeoutMillis(httpClient.getConnectTimeout(), configuration,
+                    ClientProperties.CONNECT_TIMEOUT);
+            readTimeoutMillis = timeoutMillis(httpClient.getReadTimeout(), configuration,
+                    ClientProperties.READ_TIMEOUT);
+        }
+
+        Socket connect() throws IOException {
+            final Socket socket = new Socket(Proxy.NO_PROXY);
+            sockets.add(socket);
+            try {
+                if (cancelled) {
+                    throw new IOException("Batch was interrupted");
+                }
+                final SocketAddress address = proxy != null
+                        ? new InetSocketAddress(proxy.getHostString(), proxy.getPort())
+                        : new InetSocketAddress(host, port);
+                socket.connect(address, connectTimeoutMillis);
+                socket.setSoTimeout(readTimeoutMillis);
+                socket.setTcpNoDelay(true);
+                if (!https) {
+                    return socket;
+                }
+                if (proxy != null) {
+                    tunnel(socket);
+                }
+                return startTls(socket);
+            } catch (IOException | RuntimeException e) {
+                close(socket);
+                throw e;
+            }
+        }
+
+        void close(Socket socket) {
+            sockets.remove(socket);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing more to do
+            }
+        }
+
+        void cancel() {
+            cancelled = true;
+            for (Socket socket : sockets) {
+                close(socket);
+            }
+        }
+
+        private Socket startTls(Socket socket) throws IOException {
+            final SSLContext sslContext = httpClient.getClient().getSslContext();
+            final HostnameVerifier hostnameVerifier = httpClient.getClient().getHostnameVerifier();
+            final SSLSocket sslSocket = (SSLSocket) sslContext.getSocketFactory().createSocket(socket, host, port, true);
+            if (hostnameVerifier == null) {
+                final SSLParameters parameters = sslSocket.getSSLParameters();
+                parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                sslSocket.setSSLParameters(parameters);
+            }
+            // Closing the SSLSocket closes the socket it is layered on
+            sockets.add(sslSocket);
+            sockets.remove(socket);
+            try {
+                sslSocket.startHandshake();
+                if (hostnameVerifier != null && !hostnameVerifier.verify(host, sslSocket.getSession())) {
+                    throw new SSLPeerUnverifiedException("Host name " + host + " was not verified");
+                }
+                return sslSocket;
+            } catch (IOException | RuntimeException e) {
+                close(sslSocket);
+                throw e;
+            }
+        }
+
+        private void tunnel(Socket socket) throws IOException {
+            final String authority = host + ":" + port;
+            final StringBuilder request = new StringBuilder("CONNECT ").append(authority)
+                    .append(" HTTP/1.1\r\nHost: ").append(authority).append("\r\n");
+            if (proxyAuthorization != null) {
+                request.append("Proxy-Authorization: ").append(proxyAuthorization).append("\r\n");
+            }
+            final OutputStream out = socket.getOutputStream();
+            out.write(request.append("\r\n").toString().getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            // Read unbuffered so that nothing sent by the server through the tunnel is consumed
+            final InputStream in = socket.getInputStream();
+            final String statusLine = readLine(in);
+            final int status = parseStatus(statusLine);
+            readHeaders(in);
+            if (status / 100 != 2) {
+                throw new IOException("Proxy refused tunnel to " + authority + ": " + statusLine);
+            }
+        }
+
+        private InetSocketAddress selectProxy(URI server) {
+            final ProxySelector proxySelector = ProxySelector.getDefault();
+            if (proxySelector == null) {
+                return null;
+            }
+            for (Proxy candidate : proxySelector.select(server)) {
+                if (candidate.type() == Proxy.Type.HTTP && candidate.address() instanceof InetSocketAddress address) {
+                    return address;
+                }
+            }
+            return null;
+        }
+
+        private int timeoutMillis(Duration clientTimeout, Configuration configuration, String property) {
+            if (timeout != null) {
+                return toMillis(timeout);
+            }
+            if (clientTimeout != null) {
+                return toMillis(clientTimeout);
+            }
+            // A timeout of 0 is interpreted as infinity, as by the connector
+            return configuration.getProperty(property) instanceof Number value ? value.intValue() : 0;
+        }
+
+        private int toMillis(Duration duration) {
+            return (int) Math.min(Integer.MAX_VALUE, duration.toMillis());
+        }
+    }
+
+    private static class Exchange {
+        private final HttpRequest<?> request;
+        private final byte[] encoded;
+        private volatile PipelinedResponse result;
+
+        Exchange(HttpRequest<?> request, byte[] encoded) {
+            this.request = request;
+            this.encoded = encoded;
+        }
+    }
+}
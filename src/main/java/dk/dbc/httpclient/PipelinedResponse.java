@@ -0,0 +1,104 @@
+package dk.dbc.httpclient;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Result of a single request of a {@link PipelinedBatch}, holding either the
+ * fully read response or the failure preventing it from being received
+ */
+public class PipelinedResponse {
+    private final int status;
+    private final Map<String, List<String>> headers;
+    private final byte[] entity;
+    private final Exception failure;
+
+    PipelinedResponse(int status, Map<String, List<String>> headers, byte[] entity) {
+        this.status = status;
+        this.headers = Collections.unmodifiableMap(headers);
+        this.entity = entity;
+        this.failure = null;
+    }
+
+    PipelinedResponse(Exception failure) {
+        this.status = -1;
+        this.headers = Collections.emptyMap();
+        this.entity = new byte[0];
+        this.failure = failure;
+    }
+
+    /**
+     * @return status code or -1 on failure
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return response headers by case-insensitive name
+     */
+    public Map<String, List<String>> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @param name header name
+     * @return first value of given header or null if not present
+     */
+    public String getHeaderString(String name) {
+        final List<String> values = headers.get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    /**
+     * @return response body, decompressed if the request asked for compression
+     */
+    public byte[] getEntity() {
+        return entity;
+    }
+
+    /**
+     * @return response body decoded as UTF-8 unless another charset is given by the Content-Type
+     */
+    public String getEntityAsString() {
+        Charset charset = StandardCharsets.UTF_8;
+        final String contentType = getHeaderString("Content-Type");
+        if (contentType != null) {
+            for (String parameter : contentType.split(";")) {
+                final String trimmed = parameter.trim();
+                if (trimmed.regionMatches(true, 0, "charset=", 0, 8)) {
+                    try {
+                        charset = Charset.forName(trimmed.substring(8).replace("\"", ""));
+                    } catch (IllegalArgumentException e) {
+                        // Fall back to UTF-8
+                    }
+                }
+            }
+        }
+        return new String(entity, charset);
+    }
+
+    /**
+     * @return failure preventing the response from being received, or null on success
+     */
+    public Exception getFailure() {
+        return failure;
+    }
+
+    public boolean isSuccess() {
+        return failure == null;
+    }
+
+    @Override
+    public String toString() {
+        return "PipelinedResponse{" +
+                "status=" + status +
+                ", headers=" + headers +
+                ", entityLength=" + entity.length +
+                ", failure=" + failure +
+                '}';
+    }
+}
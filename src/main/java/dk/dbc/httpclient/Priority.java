@@ -0,0 +1,19 @@
+package dk.dbc.httpclient;
+
+/**
+ * Priority of a request waiting for a connection when the number of connections per host is limited
+ *
+ * @see HttpRequest#withPriority(Priority)
+ * @see HttpClient#withMaxConnectionsPerHost(int, double)
+ */
+public enum Priority {
+    /**
+     * Batch traffic served when no requests of higher priority are waiting
+     */
+    LOW,
+    NORMAL,
+    /**
+     * Interactive traffic served first, and the only traffic allowed to use reserved connections
+     */
+    HIGH
+}
@@ -0,0 +1,338 @@
+package dk.dbc.httpclient;
+
+import jakarta.ws.rs.ProcessingException;
+import jakarta.ws.rs.core.Response;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Download of a resource to a file in byte ranges fetched in parallel over several connections.
+ * <p>
+ * A HEAD request discovers the length of the resource and whether the server accepts byte ranges,
+ * if not the resource is downloaded by a single GET request. Each range is written directly into
+ * the file at its offset. Using a {@link FailSafeHttpClient} each range is retried according to the
+ * retry policy, including failures while reading its body.
+ * </p>
+ * <p>
+ * Completed ranges are recorded in a state file next to the target file, once written to disk, so that
+ * an interrupted download is resumed by downloading the same resource to the same file again, provided
+ * its length and validator are unchanged. The state file is deleted when the download completes. Ranges are
+ * requested with If-Range, validated by the ETag of the resource if it is a strong one, otherwise by its
+ * Last-Modified date, so if the resource changes during the download the server responds with the whole
+ * resource instead, failing the download with an {@link UnexpectedStatusCodeException}. Downloading again
+ * then starts over, since the validator recorded in the state file no longer matches. A resource having
+ * neither a strong ETag nor a Last-Modified date is downloaded by a single GET request, since a change
+ * between ranges could not be detected. The Content-Range of each range is checked against the range
+ * requested before it is written.
+ * </p>
+ * <p>
+ * When a range fails, the fetching of the remaining ranges is cancelled and awaited before the download fails.
+ * </p>
+ * <p>
+ * Ranges are requested without Accept-Encoding, since ranges refer to the encoded representation.
+ * </p>
+ * <pre>
+ * {@code
+ * new RangedDownload(httpClient)
+ *          .withParallelism(8)
+ *          .download(new HttpGet(httpClient)
+ *              .withBaseUrl("http://localhost:8080")
+ *              .withPathElements("exports", "records.zip"), Path.of("records.zip"));
+ * }
+ * </pre>
+ */
+public class RangedDownload {
+    public static final String STATE_FILE_SUFFIX = ".ranges";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final HttpClient httpClient;
+    private int parallelism = 4;
+    private long partSize = 8 * 1024 * 1024;
+
+    public RangedDownload(HttpClient httpClient) throws NullPointerException {
+        if (httpClient == null) {
+            throw new NullPointerException("httpClient can not be null");
+        }
+        this.httpClient = httpClient;
+    }
+
+    /**
+     * @param parallelism number of ranges fetched in parallel
+     * @return this download
+     */
+    public RangedDownload withParallelism(int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * @param partSize size in bytes of each range
+     * @return this download
+     */
+    public RangedDownload withPartSize(long partSize) {
+        if (partSize <= 0) {
+            throw new IllegalArgumentException("partSize must be positive");
+        }
+        this.partSize = partSize;
+        return this;
+    }
+
+    /**
+     * Downloads the resource of given request to given file, blocking until done
+     * @param request request for the resource
+     * @param target target file
+     * @throws UnexpectedStatusCodeException if the server responds with an unexpected status code,
+     * be advised that the attached response must be closed to avoid resource leaks
+     * @throws ProcessingException on failure to download the resource
+     * @throws UncheckedIOException on failure to write the target file
+     */
+    public void download(HttpGet request, Path target) {
+        final long length;
+        final String validator;
+        final boolean acceptsRanges;
+        final Response head = httpClient.execute(copy(request, new HttpHead(httpClient)));
+        if (head.getStatus() != Response.Status.OK.getStatusCode()) {
+            // Left open for the caller to close
+            throw new UnexpectedStatusCodeException(head.getStatus(), head, true);
+        }
+        try (head) {
+            // Response.getLength() is an int which does not cover large resources
+            length = parseLength(head.getHeaderString("Content-Length"));
+            validator = ifRangeValidator(head.getHeaderString("ETag"), head.getHeaderString("Last-Modified"));
+            acceptsRanges = "bytes".equalsIgnoreCase(head.getHeaderString("Accept-Ranges"));
+        }
+        try {
+            if (!acceptsRanges || length <= 0 || validator == null) {
+                downloadWhole(request, target);
+            } else {
+                downloadRanges(request, target, length, validator);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void downloadWhole(HttpGet request, Path target) throws IOException {
+        final HttpGet get = copy(request, new HttpGet(httpClient));
+        try (Response response = httpClient.executeAndExpect(get, Response.Status.OK);
+             InputStream in = response.readEntity(InputStream.class)) {
+            Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.deleteIfExists(stateFile(target));
+    }
+
+    private void downloadRanges(HttpGet request, Path target, long length, String validator) throws IOException {
+        final int parts = (int) ((length + partSize - 1) / partSize);
+        final Path stateFile = stateFile(target);
+        final String stateHeader = length + " " + partSize + " " + validator;
+        final BitSet completed = readState(stateFile, stateHeader);
+        final boolean resume = !completed.isEmpty() && Files.exists(target);
+        if (!resume) {
+            completed.clear();
+            Files.writeString(stateFile, stateHeader + "\n", StandardCharsets.UTF_8);
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, parts));
+        try (FileChannel channel = resume
+                ? FileChannel.open(target, StandardOpenOption.WRITE)
+                : FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             BufferedWriter state = Files.newBufferedWriter(stateFile, StandardCharsets.UTF_8, StandardOpenOption.APPEND)) {
+            final List<Future<?>> futures = new ArrayList<>(parts);
+            for (int part = 0; part < parts; part++) {
+                if (completed.get(part)) {
+                    continue;
+                }
+                final int index = part;
+                final long offset = part * partSize;
+                final long rangeLength = Math.min(partSize, length - offset);
+                futures.add(executor.submit(() -> {
+                    final HttpGet get = copy(request, new HttpGet(httpClient))
+                            .withHeader("Range", "bytes=" + offset + "-" + (offset + rangeLength - 1))
+                            .withHeader("If-Range", validator);
+                    final Response response = httpClient.downloadRange(get, channel, offset, rangeLength);
+                    if (response.getStatus() != Response.Status.PARTIAL_CONTENT.getStatusCode()) {
+                        // Left open for the caller to close
+                        throw new UnexpectedStatusCodeException(response.getStatus(), response, true);
+                    }
+                    // The range must be on disk before being recorded as completed, or a crash could
+                    // leave a recorded range never written which a resumed download would skip
+                    channel.force(true);
+                    synchronized (state) {
+                        state.write(index + "\n");
+                        state.flush();
+                    }
+                    return null;
+                }));
+            }
+            try {
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } catch (InterruptedException | ExecutionException | RuntimeException e) {
+                // The workers must be done before the channel and the state file are closed
+                cancel(futures, executor, e instanceof ExecutionException ? e.getCause() : e);
+                throw e;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProcessingException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new ProcessingException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        Files.deleteIfExists(stateFile);
+    }
+
+    /**
+     * Cancels the fetching of the remaining ranges, waiting for the workers already fetching
+     * a range to stop, so that none of them writes to the file or the state file once closed.
+     * Responses attached to failures of other ranges than the given failure are closed.
+     */
+    private static void cancel(List<Future<?>> futures, ExecutorService executor, Throwable failure) {
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+        executor.shutdownNow();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                // Workers blocked reading a range stop at the latest by the read timeout
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Future<?> future : futures) {
+            if (future.state() == Future.State.FAILED
+                    && future.exceptionNow() instanceof UnexpectedStatusCodeException e && e != failure) {
+                e.close();
+            }
+        }
+    }
+
+    /**
+     * Fetches a single range into given channel at given offset
+     * @return server response, closed unless its status is not 206 Partial Content,
+     * in which case it is returned unread and must be closed by the caller
+     * @throws ProcessingException if the range of the response is not the range requested,
+     * or the body of the response ends before the range
+     */
+    static Response fetchRange(HttpClient httpClient, HttpGet request, FileChannel channel, long offset, long length) {
+        final Response response = httpClient.executeAttempt(request);
+        if (response.getStatus() != Response.Status.PARTIAL_CONTENT.getStatusCode()) {
+            return response;
+        }
+        try (InputStream in = response.readEntity(InputStream.class)) {
+            checkContentRange(response.getHeaderString("Content-Range"), offset, length);
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            long position = offset;
+            final long end = offset + length;
+            int n;
+            while (position < end && (n = in.read(buffer, 0, (int) Math.min(buffer.length, end - position))) >= 0) {
+                final ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, n);
+                while (bytes.hasRemaining()) {
+                    position += channel.write(bytes, position);
+                }
+            }
+            if (position != end) {
+                throw new ProcessingException("Range at offset " + offset + " ended after " + (position - offset)
+                        + " of " + length + " bytes");
+            }
+        } catch (IOException e) {
+            throw new ProcessingException(e);
+        } finally {
+            response.close();
+        }
+        return response;
+    }
+
+    /**
+     * @param etag ETag header of the resource or null
+     * @param lastModified Last-Modified header of the resource or null
+     * @return validator usable in If-Range, or null if there is none, since weak ETags are not allowed there
+     */
+    static String ifRangeValidator(String etag, String lastModified) {
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return lastModified;
+    }
+
+    private static void checkContentRange(String contentRange, long offset, long length) {
+        final String expected = "bytes " + offset + "-" + (offset + length - 1) + "/";
+        if (contentRange == null || !contentRange.trim().regionMatches(true, 0, expected, 0, expected.length())) {
+            throw new ProcessingException("Range at offset " + offset + " of " + length + " bytes answered by "
+                    + (contentRange == null ? "no Content-Range" : "Content-Range " + contentRange));
+        }
+    }
+
+    private static long parseLength(String contentLength) {
+        try {
+            return contentLength == null ? -1 : Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static Path stateFile(Path target) {
+        return target.resolveSibling(target.getFileName() + STATE_FILE_SUFFIX);
+    }
+
+    private static BitSet readState(Path stateFile, String expectedHeader) throws IOException {
+        final BitSet completed = new BitSet();
+        if (!Files.exists(stateFile)) {
+            return completed;
+        }
+        final List<String> lines = Files.readAllLines(stateFile, StandardCharsets.UTF_8);
+        if (lines.isEmpty() || !lines.get(0).equals(expectedHeader)) {
+            return completed;
+        }
+        for (String line : lines.subList(1, lines.size())) {
+            try {
+                completed.set(Integer.parseInt(line.trim()));
+            } catch (NumberFormatException e) {
+                // Partially written line of an interrupted download
+            }
+        }
+        return completed;
+    }
+
+    private static <T extends HttpRequest<T>> T copy(HttpGet request, T copy) {
+        copy.withBaseUrl(request.getBaseUrl()).withPathElements(request.getPathElements());
+        for (Map.Entry<String, Object> queryParameter : request.getQueryParameters().entrySet()) {
+            copy.withQueryParameter(queryParameter.getKey(), queryParameter.getValue());
+        }
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            if (!"Accept-Encoding".equalsIgnoreCase(header.getKey())) {
+                copy.withHeader(header.getKey(), header.getValue());
+            }
+        }
+        copy.pathTemplate = request.getPathTemplate();
+        copy.withConnectTimeout(request.getConnectTimeout()).withReadTimeout(request.getReadTimeout());
+        return copy.withDeadline(request.getDeadline());
+    }
+}
@@ -0,0 +1,176 @@
+package dk.dbc.httpclient;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Publisher executing a stream of requests driven by the demand of its subscriber.
+ * <p>
+ * Requests are only executed when demanded and at most the given number concurrently,
+ * results are published in order of completion. A failing execution terminates the
+ * stream with an error. Responses not delivered due to cancellation or failure are closed.
+ * The publisher supports a single subscriber.
+ * </p>
+ * @param <T> result type
+ * @see HttpClient#publisher(Iterator, int, Executor)
+ */
+class RequestPublisher<T> implements Flow.Publisher<T> {
+    private final Iterator<? extends HttpRequest<? extends HttpRequest<?>>> requests;
+    private final Function<HttpRequest<? extends HttpRequest<?>>, T> execution;
+    private final int maxConcurrency;
+    private final Executor executor;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    RequestPublisher(Iterator<? extends HttpRequest<? extends HttpRequest<?>>> requests,
+                     Function<HttpRequest<? extends HttpRequest<?>>, T> execution,
+                     int maxConcurrency, Executor executor) {
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("maxConcurrency must be positive");
+        }
+        this.requests = requests;
+        this.execution = execution;
+        this.maxConcurrency = maxConcurrency;
+        this.executor = executor;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {}
+
+                @Override
+                public void cancel() {}
+            });
+            subscriber.onError(new IllegalStateException("Publisher supports a single subscriber"));
+            return;
+        }
+        final Subscription subscription = new Subscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        subscription.drain();
+    }
+
+    private static void closeQuietly(Object result) {
+        if (result instanceof AutoCloseable closeable) {
+            try {
+                closeable.close();
+            } catch (Exception e) {
+                // Nothing more to be done
+            }
+        }
+    }
+
+    private record Failure(Throwable cause) {}
+
+    private class Subscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super T> subscriber;
+        private final ConcurrentLinkedQueue<Object> completed = new ConcurrentLinkedQueue<>();
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile Throwable invalidRequest;
+        private boolean terminated;
+
+        Subscription(Flow.Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("Non-positive request " + n);
+            } else {
+                requested.accumulateAndGet(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            drain();
+        }
+
+        // Only one thread at a time passes through the loop, others leave a note for it to loop again
+        @SuppressWarnings("unchecked")
+        void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            do {
+                if (terminated || cancelled) {
+                    terminated = true;
+                    Object result;
+                    while ((result = completed.poll()) != null) {
+                        closeQuietly(result);
+                    }
+                    continue;
+                }
+                if (invalidRequest != null) {
+                    terminate(invalidRequest);
+                    continue;
+                }
+                Object result;
+                while (requested.get() > 0 && (result = completed.poll()) != null) {
+                    if (result instanceof Failure failure) {
+                        terminate(failure.cause());
+                        break;
+                    }
+                    requested.decrementAndGet();
+                    subscriber.onNext((T) result);
+                }
+                if (terminated) {
+                    continue;
+                }
+                try {
+                    while (inFlight.get() + completed.size() < Math.min(requested.get(), maxConcurrency)
+                            && !cancelled && requests.hasNext()) {
+                        execute(requests.next());
+                    }
+                    if (inFlight.get() == 0 && completed.isEmpty() && !requests.hasNext()) {
+                        terminated = true;
+                        subscriber.onComplete();
+                    }
+                } catch (RuntimeException e) {
+                    terminate(e);
+                }
+            } while (wip.decrementAndGet() != 0);
+        }
+
+        private void execute(HttpRequest<? extends HttpRequest<?>> request) {
+            inFlight.incrementAndGet();
+            try {
+                executor.execute(() -> {
+                    try {
+                        completed.add(execution.apply(request));
+                    } catch (Throwable e) {
+                        completed.add(new Failure(e));
+                    } finally {
+                        inFlight.decrementAndGet();
+                        drain();
+                    }
+                });
+            } catch (RuntimeException e) {
+                inFlight.decrementAndGet();
+                throw e;
+            }
+        }
+
+        private void terminate(Throwable cause) {
+            terminated = true;
+            Object result;
+            while ((result = completed.poll()) != null) {
+                closeQuietly(result);
+            }
+            subscriber.onError(cause);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package dk.dbc.httpclient;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable and thread safe template for HTTP requests sharing base URL, path template,
+ * headers and query parameters.
+ * <p>
+ * The path template is parsed once when set, so that specialising the template per call
+ * interpolates the path variables without the regular expression matching of {@link PathBuilder},
+ * and headers and query parameters are kept in compact arrays which are copied onto the request.
+ * The request itself is still created per call, with its own mutable header and query parameter
+ * maps and User-Agent header, since these are part of the public API of {@link HttpRequest}.
+ * <p>
+ * Example:
+ * <pre>
+ * {@code
+ * private static final RequestTemplate RECORD = new RequestTemplate()
+ *          .withBaseUrl("http://localhost:8080")
+ *          .withPathTemplate("api/record/{id}")
+ *          .withHeader("Accept", "application/json")
+ *          .withQueryParameter("format", "full");
+ *
+ * final Record record = RECORD.apply(new HttpGet(httpClient), Map.of("id", id))
+ *          .executeAndExpect(Record.class);
+ * }
+ * </pre>
+ */
+public final class RequestTemplate {
+    private static final String[] EMPTY = new String[] {};
+
+    private final String baseUrl;
+    private final String pathTemplate;
+    // Each path segment is stored as alternating literals and variable names,
+    // a segment without variables is stored as a single literal
+    private final String[][] pathSegments;
+    private final String[] headerNames;
+    private final String[] headerValues;
+    private final String[] queryParameterNames;
+    private final Object[] queryParameterValues;
+
+    public RequestTemplate() {
+        this(null, null, null, EMPTY, EMPTY, EMPTY, new Object[] {});
+    }
+
+    private RequestTemplate(String baseUrl, String pathTemplate, String[][] pathSegments,
+                            String[] headerNames, String[] headerValues,
+                            String[] queryParameterNames, Object[] queryParameterValues) {
+        this.baseUrl = baseUrl;
+        this.pathTemplate = pathTemplate;
+        this.pathSegments = pathSegments;
+        this.headerNames = headerNames;
+        this.headerValues = headerValues;
+        this.queryParameterNames = queryParameterNames;
+        this.queryParameterValues = queryParameterValues;
+    }
+
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    /**
+     * @param baseUrl base URL
+     * @return new template with given base URL
+     */
+    public RequestTemplate withBaseUrl(String baseUrl) {
+        return new RequestTemplate(baseUrl, pathTemplate, pathSegments,
+                headerNames, headerValues, queryParameterNames, queryParameterValues);
+    }
+
+    public String getPathTemplate() {
+        return pathTemplate;
+    }
+
+    /**
+     * @param pathTemplate path template with variables in curly braces, see {@link PathBuilder}
+     * @return new template with given path template
+     * @throws NullPointerException if given null-valued argument
+     */
+    public RequestTemplate withPathTemplate(String pathTemplate) throws NullPointerException {
+        if (pathTemplate == null) {
+            throw new NullPointerException("pathTemplate can not be null");
+        }
+        return new RequestTemplate(baseUrl, pathTemplate, parsePathTemplate(pathTemplate),
+                headerNames, headerValues, queryParameterNames, queryParameterValues);
+    }
+
+    /**
+     * @param name header name
+     * @param value header value
+     * @return new template with given header added, replacing any existing header of the same name
+     */
+    public RequestTemplate withHeader(String name, String value) {
+        final int index = Arrays.asList(headerNames).indexOf(name);
+        final String[] names = index < 0 ? append(headerNames, name) : headerNames;
+        final String[] values = index < 0 ? append(headerValues, value) : headerValues.clone();
+        values[index < 0 ? values.length - 1 : index] = value;
+        return new RequestTemplate(baseUrl, pathTemplate, pathSegments,
+                names, values, queryParameterNames, queryParameterValues);
+    }
+
+    /**
+     * @param name query parameter name
+     * @param value query parameter value
+     * @return new template with given query parameter added, replacing any existing parameter of the same name
+     */
+    public RequestTemplate withQueryParameter(String name, Object value) {
+        final int index = Arrays.asList(queryParameterNames).indexOf(name);
+        final String[] names = index < 0 ? append(queryParameterNames, name) : queryParameterNames;
+        final Object[] values = index < 0 ? append(queryParameterValues, value) : queryParameterValues.clone();
+        values[index < 0 ? values.length - 1 : index] = value;
+        return new RequestTemplate(baseUrl, pathTemplate, pathSegments,
+                headerNames, headerValues, names, values);
+    }
+
+    /**
+     * Applies this template to given request without interpolating any path variables
+     * @param request request to be specialised
+     * @param <T> request type
+     * @return given request
+     */
+    public <T extends HttpRequest<T>> T apply(T request) {
+        return apply(request, Map.of());
+    }
+
+    /**
+     * Applies this template to given request. Values set on the request afterwards take precedence.
+     * @param request request to be specialised
+     * @param pathVariables values of path variables, String values are URL encoded
+     * @param <T> request type
+     * @return given request
+     */
+    public <T extends HttpRequest<T>> T apply(T request, Map<String, ?> pathVariables) {
+        if (baseUrl != null) {
+            request.withBaseUrl(baseUrl);
+        }
+        if (pathSegments != null) {
+            request.withPathElements(buildPath(pathVariables));
+            request.pathTemplate = pathTemplate;
+        }
+        for (int i = 0; i < headerNames.length; i++) {
+            request.withHeader(headerNames[i], headerValues[i]);
+        }
+        for (int i = 0; i < queryParameterNames.length; i++) {
+            request.withQueryParameter(queryParameterNames[i], queryParameterValues[i]);
+        }
+        return request;
+    }
+
+    /**
+     * Builds path interpolating given variables, unbound variables are left as is
+     * @param pathVariables values of path variables, String values are URL encoded
+     * @return path as separate path elements
+     */
+    public String[] buildPath(Map<String, ?> pathVariables) {
+        if (pathSegments == null) {
+            return EMPTY;
+        }
+        final String[] pathElements = new String[pathSegments.length];
+        for (int i = 0; i < pathSegments.length; i++) {
+            final String[] parts = pathSegments[i];
+            if (parts.length == 1) {
+                pathElements[i] = parts[0];
+                continue;
+            }
+            final StringBuilder pathElement = new StringBuilder();
+            for (int j = 0; j < parts.length; j++) {
+                if (j % 2 == 0) {
+                    pathElement.append(parts[j]);
+                } else {
+                    final Object value = pathVariables.get(parts[j]);
+                    if (value == null) {
+                        pathElement.append('{').append(parts[j]).append('}');
+                    } else if (value instanceof String) {
+                        pathElement.append(URLEncoder.encode((String) value, StandardCharsets.UTF_8));
+                    } else {
+                        pathElement.append(value);
+                    }
+                }
+            }
+            pathElements[i] = pathElement.toString();
+        }
+        return pathElements;
+    }
+
+    @Override
+    public String toString() {
+        return "RequestTemplate{" +
+                "baseUrl='" + baseUrl + '\'' +
+                ", pathTemplate='" + pathTemplate + '\'' +
+                ", headerNames=" + Arrays.toString(headerNames) +
+                ", queryParameterNames=" + Arrays.toString(queryParameterNames) +
+                '}';
+    }
+
+    private static String[][] parsePathTemplate(String pathTemplate) {
+        final String[] segments = pathTemplate.split(PathBuilder.PATH_SEPARATOR);
+        final String[][] parsed = new String[segments.length][];
+        for (int i = 0; i < segments.length; i++) {
+            final String segment = segments[i];
+            final List<String> parts = new ArrayList<>();
+            int literalStart = 0;
+            int variableStart;
+            while ((variableStart = segment.indexOf('{', literalStart)) >= 0) {
+                final int variableEnd = segment.indexOf('}', variableStart);
+                if (variableEnd < 0) {
+                    break;
+                }
+                parts.add(segment.substring(literalStart, variableStart));
+                parts.add(segment.substring(variableStart + 1, variableEnd));
+                literalStart = variableEnd + 1;
+            }
+            parts.add(segment.substring(literalStart));
+            parsed[i] = parts.toArray(EMPTY);
+        }
+        return parsed;
+    }
+
+    private static <E> E[] append(E[] array, E element) {
+        final E[] copy = Arrays.copyOf(array, array.length + 1);
+        copy[array.length] = element;
+        return copy;
+    }
+}
@@ -0,0 +1,34 @@
+package dk.dbc.httpclient;
+
+import java.net.URI;
+
+/**
+ * Report of a response garbage collected without having been closed.
+ * The stack trace of this exception is the site where the response was received.
+ *
+ * @see LeakDetector
+ */
+public class ResponseLeak extends Exception {
+    private final String method;
+    private final URI uri;
+    private final int status;
+
+    ResponseLeak(String method, URI uri, int status) {
+        super("Response " + status + " of " + method + " " + uri + " was never closed, received at");
+        this.method = method;
+        this.uri = uri;
+        this.status = status;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public URI getUri() {
+        return uri;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+}
@@ -0,0 +1,52 @@
+package dk.dbc.httpclient;
+
+import javax.net.ssl.SSLHandshakeException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.PortUnreachableException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+/**
+ * Classification of request failures by whether retrying the request is safe
+ * regardless of the idempotency of the request
+ */
+public final class RetrySafety {
+    private RetrySafety() {}
+
+    /**
+     * Determines whether given failure occurred before the request could have been sent, i.e. while
+     * resolving the host, connecting or during the TLS handshake. Other failures, such as read timeouts
+     * or connections reset, may occur after the server has received and processed the request.
+     * @param failure request failure
+     * @return true if the request can not have reached the server
+     */
+    public static boolean isRequestNotSent(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectException || cause instanceof UnknownHostException
+                    || cause instanceof NoRouteToHostException || cause instanceof PortUnreachableException
+                    || cause instanceof SSLHandshakeException) {
+                return true;
+            }
+            if (cause instanceof SocketTimeoutException && isThrownByConnect(cause)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The JDK reports connect and read timeouts by the same exception type, a connect timeout
+     * being thrown from within {@link Socket#connect(java.net.SocketAddress, int)}. Without a stack
+     * trace the timeout is conservatively considered to have occurred after sending.
+     */
+    private static boolean isThrownByConnect(Throwable timeout) {
+        for (StackTraceElement element : timeout.getStackTrace()) {
+            if (Socket.class.getName().equals(element.getClassName()) && "connect".equals(element.getMethodName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
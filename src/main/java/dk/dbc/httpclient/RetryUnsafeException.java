@@ -0,0 +1,15 @@
+package dk.dbc.httpclient;
+
+import jakarta.ws.rs.ProcessingException;
+
+/**
+ * Exception thrown instead of retrying a non-idempotent request which failed after it may have
+ * reached the server, the original failure being the cause.
+ *
+ * @see FailSafeHttpClient#withUnsafeRetries(boolean)
+ */
+public class RetryUnsafeException extends ProcessingException {
+    public RetryUnsafeException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,98 @@
+package dk.dbc.httpclient;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Bounded lock-free ring buffer for many producers and a single consumer.
+ * Producers never block, when the buffer is full the oldest elements are overwritten.
+ * <p>
+ * Each slot holds its element together with the sequence number claimed by the producer, published
+ * in one step, so that the consumer can tell an element it is waiting for from one not yet published,
+ * the element of an earlier round or one overwritten by a later round.
+ * </p>
+ * @param <E> element type
+ */
+class RingBuffer<E> {
+    private final AtomicReferenceArray<Slot<E>> slots;
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong overwritten = new AtomicLong();
+    private long read;
+
+    RingBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        slots = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * Adds element, safe to call from any thread
+     * @param element element
+     */
+    void offer(E element) {
+        final long sequence = written.getAndIncrement();
+        final int index = (int) (sequence % slots.length());
+        final Slot<E> slot = new Slot<>(sequence, element);
+        Slot<E> current;
+        do {
+            current = slots.get(index);
+            if (current != null && current.sequence > sequence) {
+                // Overtaken by a producer of a later round, the consumer counts the element as overwritten
+                return;
+            }
+        } while (!slots.compareAndSet(index, current, slot));
+    }
+
+    /**
+     * Passes the available elements to given consumer in order, must only be called from a single thread
+     * @param consumer consumer of elements
+     * @return number of elements consumed
+     */
+    int drain(Consumer<? super E> consumer) {
+        final long available = written.get();
+        if (available - read > slots.length()) {
+            overwritten.addAndGet(available - read - slots.length());
+            read = available - slots.length();
+        }
+        int drained = 0;
+        while (read < available) {
+            final int index = (int) (read % slots.length());
+            final Slot<E> slot = slots.get(index);
+            if (slot == null || slot.sequence < read) {
+                // Claimed by a producer but not yet published, retried at the next drain
+                break;
+            }
+            final boolean lapped = slot.sequence > read;
+            read++;
+            if (lapped) {
+                // Overwritten by a later round before being consumed
+                overwritten.incrementAndGet();
+                continue;
+            }
+            // Releases the element unless already replaced by a later round
+            slots.compareAndSet(index, slot, null);
+            drained++;
+            consumer.accept(slot.element);
+        }
+        return drained;
+    }
+
+    /**
+     * @return number of elements overwritten before being consumed
+     */
+    long getOverwritten() {
+        return overwritten.get();
+    }
+
+    private static class Slot<E> {
+        private final long sequence;
+        private final E element;
+
+        Slot(long sequence, E element) {
+            this.sequence = sequence;
+            this.element = element;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package dk.dbc.httpclient;
+
+/**
+ * Event received from a text/event-stream
+ * @see HttpGet#executeEventStream(java.util.function.Consumer)
+ */
+public class ServerSentEvent {
+    private final String id;
+    private final String name;
+    private final String data;
+    private final Long retry;
+
+    public ServerSentEvent(String id, String name, String data, Long retry) {
+        this.id = id;
+        this.name = name;
+        this.data = data;
+        this.retry = retry;
+    }
+
+    /**
+     * @return last event id of the stream at the time of this event, or null if none
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return event type, defaults to "message"
+     */
+    public String getName() {
+        return name;
+    }
+
+    public String getData() {
+        return data;
+    }
+
+    /**
+     * @return reconnection time in milliseconds last requested by the server at the time of this event,
+     * or null if none
+     */
+    public Long getRetry() {
+        return retry;
+    }
+
+    @Override
+    public String toString() {
+        return "ServerSentEvent{" +
+                "id='" + id + '\'' +
+                ", name='" + name + '\'' +
+                ", data='" + data + '\'' +
+                ", retry=" + retry +
+                '}';
+    }
+}
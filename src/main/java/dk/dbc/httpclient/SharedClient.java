@@ -0,0 +1,137 @@
+package dk.dbc.httpclient;
+
+import jakarta.ws.rs.client.Client;
+import jakarta.ws.rs.client.Invocation;
+import jakarta.ws.rs.client.WebTarget;
+import jakarta.ws.rs.core.Configuration;
+import jakarta.ws.rs.core.Link;
+import jakarta.ws.rs.core.UriBuilder;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Handle of a client shared through a {@link ClientRegistry}, delegating to the shared client.
+ * Closing the handle releases its reference to the shared client instead of closing it.
+ */
+class SharedClient implements Client {
+    private final Client client;
+    private final ClientRegistry registry;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    SharedClient(Client client, ClientRegistry registry) {
+        this.client = client;
+        this.registry = registry;
+    }
+
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            registry.release(client);
+        }
+    }
+
+    @Override
+    public WebTarget target(String uri) {
+        return open().target(uri);
+    }
+
+    @Override
+    public WebTarget target(URI uri) {
+        return open().target(uri);
+    }
+
+    @Override
+    public WebTarget target(UriBuilder uriBuilder) {
+        return open().target(uriBuilder);
+    }
+
+    @Override
+    public WebTarget target(Link link) {
+        return open().target(link);
+    }
+
+    @Override
+    public Invocation.Builder invocation(Link link) {
+        return open().invocation(link);
+    }
+
+    @Override
+    public SSLContext getSslContext() {
+        return client.getSslContext();
+    }
+
+    @Override
+    public HostnameVerifier getHostnameVerifier() {
+        return client.getHostnameVerifier();
+    }
+
+    @Override
+    public Configuration getConfiguration() {
+        return client.getConfiguration();
+    }
+
+    @Override
+    public Client property(String name, Object value) {
+        open().property(name, value);
+        return this;
+    }
+
+    @Override
+    public Client register(Class<?> componentClass) {
+        open().register(componentClass);
+        return this;
+    }
+
+    @Override
+    public Client register(Class<?> componentClass, int priority) {
+        open().register(componentClass, priority);
+        return this;
+    }
+
+    @Override
+    public Client register(Class<?> componentClass, Class<?>... contracts) {
+        open().register(componentClass, contracts);
+        return this;
+    }
+
+    @Override
+    public Client register(Class<?> componentClass, Map<Class<?>, Integer> contracts) {
+        open().register(componentClass, contracts);
+        return this;
+    }
+
+    @Override
+    public Client register(Object component) {
+        open().register(component);
+        return this;
+    }
+
+    @Override
+    public Client register(Object component, int priority) {
+        open().register(component, priority);
+        return this;
+    }
+
+    @Override
+    public Client register(Object component, Class<?>... contracts) {
+        open().register(component, contracts);
+        return this;
+    }
+
+    @Override
+    public Client register(Object component, Map<Class<?>, Integer> contracts) {
+        open().register(component, contracts);
+        return this;
+    }
+
+    private Client open() {
+        if (closed.get()) {
+            throw new IllegalStateException("Client instance has been closed.");
+        }
+        return client;
+    }
+}
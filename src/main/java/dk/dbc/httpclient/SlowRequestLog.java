@@ -0,0 +1,169 @@
+package dk.dbc.httpclient;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Detector of slow requests.
+ * <p>
+ * Executions taking longer than the threshold for their URL template are sampled, rate limited
+ * and written to a lock-free ring buffer by the executing thread, which thereby never blocks.
+ * A background thread drains the buffer and passes the {@link Span} of each slow request to the sink,
+ * giving its timing, status, response size, encoding and number of attempts. The timing is the total duration
+ * and the duration of the last attempt, the remainder being spent on failed attempts and delays between them.
+ * The last attempt is not broken down into connecting, waiting for the first byte and reading the body,
+ * since the connector of the client does not expose these phases.
+ * </p>
+ * <pre>
+ * {@code
+ * final SlowRequestLog slowRequestLog = new SlowRequestLog(Duration.ofSeconds(1),
+ *          span -> LOGGER.warn("Slow request {}", span))
+ *          .withThreshold("http://localhost:8080/api/search", Duration.ofSeconds(5))
+ *          .withSampleRate(0.1)
+ *          .withMaxPerSecond(10);
+ * httpClient.withSlowRequestLog(slowRequestLog);
+ * }
+ * </pre>
+ */
+public class SlowRequestLog implements AutoCloseable {
+    private static final int DEFAULT_CAPACITY = 1024;
+    private static final long DRAIN_INTERVAL_MILLIS = 100;
+
+    private final long thresholdNanos;
+    private final Map<String, Long> thresholdNanosByUrlTemplate = new ConcurrentHashMap<>();
+    private final RingBuffer<Span> buffer;
+    private final ScheduledExecutorService drainer;
+    // Second of the current rate limiting window in the upper 32 bits, slow requests logged in it in the lower
+    private final AtomicLong rateWindow = new AtomicLong(rateWindow(currentSecond() - 1, 0));
+    private final AtomicLong rateLimited = new AtomicLong();
+    private volatile double sampleRate = 1.0;
+    private volatile int maxPerSecond = Integer.MAX_VALUE;
+
+    /**
+     * @param threshold default threshold for a request to be considered slow
+     * @param sink consumer of slow request spans, called from a background thread
+     */
+    public SlowRequestLog(Duration threshold, Consumer<Span> sink) {
+        this(threshold, sink, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param threshold default threshold for a request to be considered slow
+     * @param sink consumer of slow request spans, called from a background thread
+     * @param capacity capacity of the ring buffer, when full the oldest entries are dropped
+     * @throws NullPointerException if given null-valued threshold or sink
+     */
+    public SlowRequestLog(Duration threshold, Consumer<Span> sink, int capacity) throws NullPointerException {
+        if (threshold == null) {
+            throw new NullPointerException("threshold can not be null");
+        }
+        if (sink == null) {
+            throw new NullPointerException("sink can not be null");
+        }
+        this.thresholdNanos = threshold.toNanos();
+        this.buffer = new RingBuffer<>(capacity);
+        this.drainer = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "httpclient-slow-request-log");
+            thread.setDaemon(true);
+            return thread;
+        });
+        drainer.scheduleWithFixedDelay(() -> {
+            try {
+                buffer.drain(sink);
+            } catch (RuntimeException e) {
+                // A failing sink must not stop the draining
+            }
+        }, DRAIN_INTERVAL_MILLIS, DRAIN_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Overrides the default threshold for given URL template
+     * @param urlTemplate URL template as recorded in {@link Span#URL_TEMPLATE}
+     * @param threshold threshold for a request to be considered slow
+     * @return this log
+     */
+    public SlowRequestLog withThreshold(String urlTemplate, Duration threshold) {
+        thresholdNanosByUrlTemplate.put(urlTemplate, threshold.toNanos());
+        return this;
+    }
+
+    /**
+     * @param sampleRate fraction of slow requests to log between 0 and 1
+     * @return this log
+     */
+    public SlowRequestLog withSampleRate(double sampleRate) {
+        this.sampleRate = sampleRate;
+        return this;
+    }
+
+    /**
+     * @param maxPerSecond maximum number of slow requests to log per second
+     * @return this log
+     */
+    public SlowRequestLog withMaxPerSecond(int maxPerSecond) {
+        this.maxPerSecond = maxPerSecond;
+        return this;
+    }
+
+    /**
+     * @return number of slow requests not logged due to rate limiting or a full buffer
+     */
+    public long getDropped() {
+        return rateLimited.get() + buffer.getOverwritten();
+    }
+
+    @Override
+    public void close() {
+        drainer.shutdownNow();
+    }
+
+    void record(Span span) {
+        final Duration duration = span.getDuration();
+        final Object urlTemplate = span.getAttribute(Span.URL_TEMPLATE);
+        final Long threshold = urlTemplate != null ? thresholdNanosByUrlTemplate.get(urlTemplate) : null;
+        if (duration == null || duration.toNanos() < (threshold != null ? threshold : thresholdNanos)) {
+            return;
+        }
+        if (sampleRate < 1.0 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return;
+        }
+        if (!acquirePermit()) {
+            rateLimited.incrementAndGet();
+            return;
+        }
+        buffer.offer(span);
+    }
+
+    private boolean acquirePermit() {
+        final int second = currentSecond();
+        while (true) {
+            final long window = rateWindow.get();
+            // A thread having read the clock before the window was moved on counts in the newer window
+            final boolean newWindow = second - (int) (window >>> 32) > 0;
+            final long logged = newWindow ? 0 : window & 0xFFFFFFFFL;
+            if (logged >= maxPerSecond) {
+                return false;
+            }
+            // Moving on to a new window and counting in it is a single step, so no permit is lost or given twice
+            final long next = newWindow ? rateWindow(second, 1) : window + 1;
+            if (rateWindow.compareAndSet(window, next)) {
+                return true;
+            }
+        }
+    }
+
+    private static int currentSecond() {
+        return (int) (System.nanoTime() / 1_000_000_000L);
+    }
+
+    private static long rateWindow(int second, long logged) {
+        return (long) second << 32 | logged;
+    }
+}
@@ -0,0 +1,68 @@
+package dk.dbc.httpclient;
+
+import jakarta.annotation.Priority;
+import jakarta.ws.rs.Priorities;
+import jakarta.ws.rs.client.ClientRequestContext;
+import jakarta.ws.rs.client.ClientResponseContext;
+import jakarta.ws.rs.client.ClientResponseFilter;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+
+/**
+ * Filter reading response bodies up to the size given by the request property {@link #SMALL_BODY_SIZE}
+ * in one go, into a buffer of exactly the size announced by the Content-Length header or otherwise
+ * into a buffer pooled per thread, and closing the entity stream, thereby returning the connection to
+ * the pool before the entity is decoded from the buffer. Bodies turning out to be larger are read
+ * as a stream as usual.
+ *
+ * @see HttpClient#withSmallBodySize(int)
+ */
+// Response filters run in descending order of priority, so this runs after the filters wrapping the entity stream
+@Priority(Priorities.ENTITY_CODER)
+public class SmallBodyFilter implements ClientResponseFilter {
+    public static final String SMALL_BODY_SIZE = "dk.dbc.httpclient.smallBodySize";
+
+    private static final ThreadLocal<byte[]> BUFFERS = new ThreadLocal<>();
+
+    @Override
+    public void filter(ClientRequestContext requestContext, ClientResponseContext responseContext) throws IOException {
+        final Object smallBodySize = requestContext.getProperty(SMALL_BODY_SIZE);
+        if (!(smallBodySize instanceof Integer) || !responseContext.hasEntity()) {
+            return;
+        }
+        final int maxSize = (Integer) smallBodySize;
+        final int length = responseContext.getLength();
+        if (length > maxSize) {
+            return;
+        }
+        final InputStream entityStream = responseContext.getEntityStream();
+        if (length >= 0) {
+            final byte[] body = entityStream.readNBytes(length);
+            if (body.length < length) {
+                throw new EOFException("Premature end of response body, expected " + length
+                        + " bytes but got " + body.length);
+            }
+            entityStream.close();
+            responseContext.setEntityStream(new ByteArrayInputStream(body));
+            return;
+        }
+        byte[] buffer = BUFFERS.get();
+        if (buffer == null || buffer.length < maxSize + 1) {
+            buffer = new byte[maxSize + 1];
+            BUFFERS.set(buffer);
+        }
+        final int n = entityStream.readNBytes(buffer, 0, maxSize + 1);
+        final byte[] body = Arrays.copyOf(buffer, n);
+        if (n <= maxSize) {
+            entityStream.close();
+            responseContext.setEntityStream(new ByteArrayInputStream(body));
+        } else {
+            responseContext.setEntityStream(new SequenceInputStream(new ByteArrayInputStream(body), entityStream));
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package dk.dbc.httpclient;
+
+import jakarta.ws.rs.core.Response;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Timing and attributes of a single request execution including any retry attempts.
+ * The trace context ids are null for spans recorded only for the {@link SlowRequestLog}.
+ * @see Tracing
+ * @see SlowRequestLog
+ */
+public class Span {
+    public static final String HTTP_METHOD = "http.request.method";
+    public static final String URL_TEMPLATE = "url.template";
+    public static final String URL_FULL = "url.full";
+    public static final String STATUS_CODE = "http.response.status_code";
+    public static final String RETRY_COUNT = "http.request.resend_count";
+    public static final String CONTENT_LENGTH = "http.response.body.size";
+    public static final String CONTENT_ENCODING = "http.response.content_encoding";
+    public static final String ERROR_TYPE = "error.type";
+
+    private final String name;
+    private final String traceId;
+    private final String spanId;
+    private final String parentSpanId;
+    private final String traceFlags;
+    private final Instant start;
+    private final long startNanos;
+    private final Map<String, Object> attributes = new LinkedHashMap<>();
+    private long durationNanos = -1;
+    private long lastAttemptStartNanos;
+    private int attempts;
+
+    Span(String name, String traceId, String spanId, String parentSpanId, String traceFlags) {
+        this.name = name;
+        this.traceId = traceId;
+        this.spanId = spanId;
+        this.parentSpanId = parentSpanId;
+        this.traceFlags = traceFlags;
+        this.start = Instant.now();
+        this.startNanos = System.nanoTime();
+    }
+
+    static Span start(HttpRequest<?> request, String traceId, String spanId, String parentSpanId, String traceFlags) {
+        final String path = request.getPathTemplate() != null
+                ? request.getPathTemplate() : String.join(PathBuilder.PATH_SEPARATOR, request.getPathElements());
+        final String urlTemplate = path.isEmpty()
+                ? request.getBaseUrl() : request.getBaseUrl() + PathBuilder.PATH_SEPARATOR + path;
+        return new Span(request.getMethod(), traceId, spanId, parentSpanId, traceFlags)
+                .setAttribute(HTTP_METHOD, request.getMethod())
+                .setAttribute(URL_TEMPLATE, urlTemplate);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getTraceId() {
+        return traceId;
+    }
+
+    public String getSpanId() {
+        return spanId;
+    }
+
+    /**
+     * @return id of parent span or null if this span started a new trace
+     */
+    public String getParentSpanId() {
+        return parentSpanId;
+    }
+
+    public String getTraceFlags() {
+        return traceFlags;
+    }
+
+    public Instant getStart() {
+        return start;
+    }
+
+    /**
+     * @return duration of the span or null if not yet ended
+     */
+    public Duration getDuration() {
+        return durationNanos < 0 ? null : Duration.ofNanos(durationNanos);
+    }
+
+    /**
+     * @return duration of the last attempt or null if not yet ended, the remainder
+     * of the span duration was spent on failed attempts and delays between retries
+     */
+    public Duration getLastAttemptDuration() {
+        return durationNanos < 0 || attempts == 0 ? null : Duration.ofNanos(startNanos + durationNanos - lastAttemptStartNanos);
+    }
+
+    public Map<String, Object> getAttributes() {
+        return Collections.unmodifiableMap(attributes);
+    }
+
+    public Object getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    /**
+     * @return number of attempts made
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    Span setAttribute(String name, Object value) {
+        if (value != null) {
+            attributes.put(name, value);
+        }
+        return this;
+    }
+
+    void attempt() {
+        attempts++;
+        lastAttemptStartNanos = System.nanoTime();
+    }
+
+    void end(Response response, Throwable failure) {
+        durationNanos = System.nanoTime() - startNanos;
+        if (response != null) {
+            attributes.put(STATUS_CODE, response.getStatus());
+            if (response.getLength() >= 0) {
+                attributes.put(CONTENT_LENGTH, response.getLength());
+            }
+            setAttribute(CONTENT_ENCODING, response.getHeaderString("Content-Encoding"));
+        }
+        if (failure != null) {
+            attributes.put(ERROR_TYPE, failure.getClass().getName());
+        }
+        if (attempts > 1) {
+            attributes.put(RETRY_COUNT, attempts - 1);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Span{" +
+                "name='" + name + '\'' +
+                ", traceId='" + traceId + '\'' +
+                ", spanId='" + spanId + '\'' +
+                ", parentSpanId='" + parentSpanId + '\'' +
+                ", start=" + start +
+                ", duration=" + getDuration() +
+                ", attributes=" + attributes +
+                '}';
+    }
+}
@@ -0,0 +1,15 @@
+package dk.dbc.httpclient;
+
+/**
+ * Receives spans of finished request executions
+ * @see Tracing
+ */
+@FunctionalInterface
+public interface SpanExporter {
+    /**
+     * Exports given span, called on the thread executing the request so implementations
+     * should hand off any expensive work
+     * @param span finished span
+     */
+    void export(Span span);
+}
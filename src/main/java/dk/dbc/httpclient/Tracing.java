@@ -0,0 +1,103 @@
+package dk.dbc.httpclient;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/**
+ * Distributed tracing of request executions.
+ * <p>
+ * For each execution, including all of its retry attempts, a {@link Span} is started and
+ * its context is propagated to the server in W3C Trace Context {@code traceparent} header.
+ * The span becomes a child of the trace context given by a {@code traceparent} header set
+ * on the request, or else by the current context supplier, or else starts a new trace.
+ * A {@code tracestate} header set on the request is propagated unchanged.
+ * The span is exported when the response is returned, that is before its body is read.
+ * </p>
+ * <p>
+ * Tracing is disabled unless set on the client, in which case executions do not allocate anything for it.
+ * </p>
+ * <pre>
+ * {@code
+ * final InMemorySpanExporter exporter = new InMemorySpanExporter();
+ * final HttpClient httpClient = HttpClient.create(HttpClient.newClient(), ua)
+ *          .withTracing(new Tracing(exporter));
+ * }
+ * </pre>
+ */
+public class Tracing {
+    public static final String TRACEPARENT = "traceparent";
+    public static final String TRACESTATE = "tracestate";
+
+    private static final String VERSION = "00";
+    private static final String SAMPLED = "01";
+
+    private final SpanExporter exporter;
+    private final Supplier<String> currentTraceparent;
+
+    /**
+     * @param exporter exporter of finished spans
+     */
+    public Tracing(SpanExporter exporter) {
+        this(exporter, null);
+    }
+
+    /**
+     * @param exporter exporter of finished spans
+     * @param currentTraceparent supplier of the traceparent of the current context, e.g. from
+     *                           the incoming request being served (can be null or supply null)
+     * @throws NullPointerException if given null-valued exporter
+     */
+    public Tracing(SpanExporter exporter, Supplier<String> currentTraceparent) throws NullPointerException {
+        if (exporter == null) {
+            throw new NullPointerException("exporter can not be null");
+        }
+        this.exporter = exporter;
+        this.currentTraceparent = currentTraceparent;
+    }
+
+    Span start(HttpRequest<?> request) {
+        String parent = request.getHeaders().get(TRACEPARENT);
+        if (parent == null && currentTraceparent != null) {
+            parent = currentTraceparent.get();
+        }
+        if (isValid(parent)) {
+            return Span.start(request, parent.substring(3, 35), randomHex(16),
+                    parent.substring(36, 52), parent.substring(53, 55));
+        }
+        return Span.start(request, randomHex(32), randomHex(16), null, SAMPLED);
+    }
+
+    void export(Span span) {
+        exporter.export(span);
+    }
+
+    static String traceparent(Span span) {
+        return VERSION + "-" + span.getTraceId() + "-" + span.getSpanId() + "-" + span.getTraceFlags();
+    }
+
+    // version "-" trace-id "-" parent-id "-" trace-flags
+    private static boolean isValid(String traceparent) {
+        if (traceparent == null || traceparent.length() != 55
+                || traceparent.charAt(2) != '-' || traceparent.charAt(35) != '-' || traceparent.charAt(52) != '-') {
+            return false;
+        }
+        for (int i = 0; i < traceparent.length(); i++) {
+            final char c = traceparent.charAt(i);
+            if (c != '-' && Character.digit(c, 16) < 0) {
+                return false;
+            }
+        }
+        return !traceparent.startsWith("ff")
+                && !traceparent.startsWith("00000000000000000000000000000000", 3)
+                && !traceparent.startsWith("0000000000000000", 36);
+    }
+
+    private static String randomHex(int length) {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final StringBuilder hex = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            hex.append(Character.forDigit(random.nextInt(16), 16));
+        }
+        return hex.toString();
+    }
+}
@@ -5,19 +5,53 @@ import jakarta.ws.rs.core.Response;
 /**
  * Exception thrown when an unexpected status code is returned from a server.
  * The response is included in the exception and must be closed by the caller to avoid resource leakage.
+ * <p>
+ * The status code is held as an int, also in the serialized form, which is therefore not compatible with
+ * that of earlier versions holding a {@link Response.Status}.
+ * </p>
  */
 public class UnexpectedStatusCodeException extends RuntimeException {
-    private final Response.Status statusCode;
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
     private final transient Response response;
 
+    /**
+     * @param statusCode actual status code, if null the status of the response is used
+     * @param response server response
+     */
     public UnexpectedStatusCodeException(Response.Status statusCode, Response response) {
-        super("Unexpected status code: " + statusCode);
-        this.statusCode = statusCode;
+        this(statusCode != null ? statusCode.getStatusCode() : statusOf(response), response, true);
+    }
+
+    /**
+     * @param status actual status code
+     * @param response server response
+     * @param writableStackTrace whether the stack trace should be filled in, exceptions
+     *                           used for expected outcomes can skip this cost
+     */
+    UnexpectedStatusCodeException(int status, Response response, boolean writableStackTrace) {
+        super(null, null, writableStackTrace, writableStackTrace);
+        this.status = status;
         this.response = response;
     }
 
+    @Override
+    public String getMessage() {
+        return "Unexpected status code: " + getStatusCode();
+    }
+
+    /**
+     * Resolves the status code from {@link #getStatus()}, so unlike earlier versions it is not null
+     * when the exception was created without a status code but with a response of a known status
+     * @return status code, or null if the status code is unknown to {@link Response.Status}
+     */
     public Response.Status getStatusCode() {
-        return statusCode;
+        return Response.Status.fromStatusCode(status);
+    }
+
+    public int getStatus() {
+        return status;
     }
 
     public Response getResponse() {
@@ -29,4 +63,8 @@ public class UnexpectedStatusCodeException extends RuntimeException {
             response.close();
         }
     }
+
+    private static int statusOf(Response response) {
+        return response != null ? response.getStatus() : -1;
+    }
 }
@@ -3,14 +3,30 @@ package dk.dbc.httpclient;
 import dk.dbc.commons.useragent.UserAgent;
 import jakarta.ws.rs.ProcessingException;
 import jakarta.ws.rs.client.Client;
+import jakarta.ws.rs.client.Entity;
+import jakarta.ws.rs.client.Invocation;
+import jakarta.ws.rs.client.WebTarget;
+import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import net.jodah.failsafe.RetryPolicy;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.RETURNS_SELF;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -40,4 +56,203 @@ public class FailSafeHttpClientTest {
 
         verify(client, times(numberOfRetries + 1)).target(baseurl);
     }
+
+    @Test
+    public void doesNotAttemptRequestWhenDeadlineHasPassed() {
+        final Client client = mock(Client.class);
+        final RetryPolicy<Response> retryPolicy = new RetryPolicy<Response>()
+                .handle(ProcessingException.class)
+                .withDelay(Duration.ofMillis(1))
+                .withMaxRetries(3);
+
+        final FailSafeHttpClient failSafeHttpClient = FailSafeHttpClient.create(client, USER_AGENT, retryPolicy);
+        final HttpGet httpGet = new HttpGet(failSafeHttpClient)
+                .withBaseUrl("http://no.such.host")
+                .withDeadline(Duration.ofMillis(-1));
+
+        assertThrows(DeadlineExceededException.class, () -> failSafeHttpClient.execute(httpGet));
+
+        verify(client, never()).target(anyString());
+    }
+
+    @Test
+    public void stopsRetryingWhenDeadlineIsTooClose() {
+        final String baseurl = "http://no.such.host";
+        final Client client = mock(Client.class);
+        when(client.target(baseurl)).thenThrow(new ProcessingException("err"));
+
+        // The delay of the policy would pass the deadline, so waiting is cut off at the last moment
+        // leaving the minimum attempt time
+        final RetryPolicy<Response> retryPolicy = new RetryPolicy<Response>()
+                .handle(ProcessingException.class)
+                .withDelay(Duration.ofMinutes(1))
+                .withMaxRetries(100);
+
+        final FailSafeHttpClient failSafeHttpClient = FailSafeHttpClient.create(client, USER_AGENT, retryPolicy)
+                .withMinimumAttemptTime(Duration.ofSeconds(1));
+        final HttpGet httpGet = new HttpGet(failSafeHttpClient)
+                .withBaseUrl(baseurl)
+                .withDeadline(Duration.ofSeconds(2));
+
+        final long start = System.nanoTime();
+        assertThrows(DeadlineExceededException.class, () -> failSafeHttpClient.execute(httpGet));
+        final Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+        verify(client, times(1)).target(baseurl);
+        assertThat("elapsed " + elapsed, elapsed.compareTo(Duration.ofSeconds(30)) < 0, is(true));
+    }
+
+    @Test
+    public void cutsOffConditionalDelaysAtDeadline() {
+        final String baseurl = "http://no.such.host";
+        final Client client = mock(Client.class);
+        when(client.target(baseurl)).thenThrow(new ProcessingException("err"));
+
+        final RetryPolicy<Response> retryPolicy = new RetryPolicy<Response>()
+                .handle(ProcessingException.class)
+                .withDelay(Duration.ofMillis(1))
+                .withDelayOn((result, failure, context) -> Duration.ofMinutes(1), ProcessingException.class)
+                .withMaxRetries(100);
+
+        final FailSafeHttpClient failSafeHttpClient = FailSafeHttpClient.create(client, USER_AGENT, retryPolicy)
+                .withMinimumAttemptTime(Duration.ofSeconds(1));
+        final HttpGet httpGet = new HttpGet(failSafeHttpClient)
+                .withBaseUrl(baseurl)
+                .withDeadline(Duration.ofSeconds(2));
+
+        final long start = System.nanoTime();
+        assertThrows(DeadlineExceededException.class, () -> failSafeHttpClient.execute(httpGet));
+        final Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+        verify(client, times(1)).target(baseurl);
+        assertThat("elapsed " + elapsed, elapsed.compareTo(Duration.ofSeconds(30)) < 0, is(true));
+        assertThat(Thread.currentThread().isInterrupted(), is(false));
+    }
+
+    @Test
+    public void doesNotModifyGivenRetryPolicy() {
+        final RetryPolicy<Response> retryPolicy = new RetryPolicy<Response>()
+                .handle(ProcessingException.class)
+                .withDelay(Duration.ofMillis(1))
+                .withMaxRetries(3);
+
+        FailSafeHttpClient.create(mock(Client.class), USER_AGENT, retryPolicy);
+
+        assertThat(retryPolicy.isAbortable(null, new DeadlineExceededException("deadline")), is(false));
+        assertThat(retryPolicy.getDelayFn() == null, is(true));
+    }
+
+    @Test
+    public void tracesAllAttemptsInOneSpan() {
+        final int numberOfRetries = 2;
+        final String baseurl = "http://no.such.host";
+        final Client client = mock(Client.class);
+        when(client.target(baseurl)).thenThrow(new ProcessingException("err"));
+
+        final RetryPolicy<Response> retryPolicy = new RetryPolicy<Response>()
+                .handle(ProcessingException.class)
+                .withDelay(Duration.ofMillis(1))
+                .withMaxRetries(numberOfRetries);
+
+        final InMemorySpanExporter exporter = new InMemorySpanExporter();
+        final FailSafeHttpClient failSafeHttpClient = FailSafeHttpClient.create(client, USER_AGENT, retryPolicy)
+                .withTracing(new Tracing(exporter));
+        final HttpGet httpGet = new HttpGet(failSafeHttpClient)
+                .withBaseUrl(baseurl);
+
+        assertThrows(ProcessingException.class, () -> failSafeHttpClient.execute(httpGet));
+
+        assertThat(exporter.getSpans().size(), is(1));
+        final Span span = exporter.getSpans().get(0);
+        assertThat(span.getAttempts(), is(numberOfRetries + 1));
+        assertThat(span.getAttribute(Span.RETRY_COUNT), is(numberOfRetries));
+        assertThat(span.getAttribute(Span.ERROR_TYPE), is(ProcessingException.class.getName()));
+    }
+
+    @Test
+    public void sendsSameIdempotencyKeyInAllAttempts() {
+        final int numberOfRetries = 2;
+        final String baseurl = "http://no.such.host";
+        final RetryPolicy<Response> retryPolicy = new RetryPolicy<Response>()
+                .handle(ProcessingException.class)
+                .withDelay(Duration.ofMillis(1))
+                .withMaxRetries(numberOfRetries);
+
+        final List<String> keys = new ArrayList<>();
+        final List<Object> entities = new ArrayList<>();
+        final Invocation.Builder invocation = mock(Invocation.Builder.class, RETURNS_SELF);
+        when(invocation.header(anyString(), any())).thenAnswer(call -> {
+            if (FailSafeHttpClient.IDEMPOTENCY_KEY.equals(call.getArgument(0)) && call.getArgument(1) != null) {
+                keys.add(call.getArgument(1));
+            }
+            return invocation;
+        });
+        when(invocation.post(any())).thenAnswer(call -> {
+            entities.add(((Entity<?>) call.getArgument(0)).getEntity());
+            throw new ProcessingException("err");
+        });
+        final WebTarget target = mock(WebTarget.class, RETURNS_SELF);
+        when(target.request()).thenReturn(invocation);
+        final Client client = mock(Client.class);
+        when(client.target(baseurl)).thenReturn(target);
+
+        final FailSafeHttpClient failSafeHttpClient = FailSafeHttpClient.create(client, USER_AGENT, retryPolicy)
+                .withIdempotencyKeys(true);
+        final ByteArrayInputStream data = new ByteArrayInputStream(new byte[] {42});
+        final HttpPost httpPost = new HttpPost(failSafeHttpClient)
+                .withBaseUrl(baseurl)
+                .withData(data, MediaType.APPLICATION_OCTET_STREAM);
+
+        assertThrows(ProcessingException.class, () -> failSafeHttpClient.execute(httpPost));
+
+        assertThat(keys.size(), is(numberOfRetries + 1));
+        assertThat(new HashSet<>(keys).size(), is(1));
+        assertThat(entities.size(), is(numberOfRetries + 1));
+        assertThat(entities.stream().allMatch(entity -> entity instanceof byte[]), is(true));
+        // The request itself is left untouched
+        assertThat(httpPost.getHeaders().containsKey(FailSafeHttpClient.IDEMPOTENCY_KEY), is(false));
+        assertThat(httpPost.getEntity().getEntity(), is(data));
+    }
+
+    @Test
+    public void retriesPostOnlyWhenNotSent() {
+        final int numberOfRetries = 3;
+        final String baseurl = "http://no.such.host";
+        final RetryPolicy<Response> retryPolicy = new RetryPolicy<Response>()
+                .handle(ProcessingException.class)
+                .withDelay(Duration.ofMillis(1))
+                .withMaxRetries(numberOfRetries);
+
+        final Client readTimeoutClient = mock(Client.class);
+        when(readTimeoutClient.target(baseurl)).thenThrow(new ProcessingException(new SocketTimeoutException("Read timed out")));
+        final FailSafeHttpClient readTimeoutHttpClient = FailSafeHttpClient.create(readTimeoutClient, USER_AGENT, retryPolicy)
+                .withUnsafeRetries(false);
+        assertThrows(RetryUnsafeException.class, () -> readTimeoutHttpClient.execute(new HttpPost(readTimeoutHttpClient)
+                .withBaseUrl(baseurl)));
+        verify(readTimeoutClient, times(1)).target(baseurl);
+
+        final Client refusingClient = mock(Client.class);
+        when(refusingClient.target(baseurl)).thenThrow(new ProcessingException(new ConnectException("Connection refused")));
+        final FailSafeHttpClient refusedHttpClient = FailSafeHttpClient.create(refusingClient, USER_AGENT, retryPolicy)
+                .withUnsafeRetries(false);
+        assertThrows(ProcessingException.class, () -> refusedHttpClient.execute(new HttpPost(refusedHttpClient)
+                .withBaseUrl(baseurl)));
+        verify(refusingClient, times(numberOfRetries + 1)).target(baseurl);
+    }
+
+    @Test
+    public void classifiesTimeoutsByWhereTheyOccurred() {
+        final SocketTimeoutException connectTimeout = new SocketTimeoutException();
+        connectTimeout.setStackTrace(new StackTraceElement[] {
+                new StackTraceElement("sun.nio.ch.NioSocketImpl", "timedFinishConnect", null, -1),
+                new StackTraceElement("java.net.Socket", "connect", null, -1)});
+        final SocketTimeoutException readTimeout = new SocketTimeoutException();
+        readTimeout.setStackTrace(new StackTraceElement[] {
+                new StackTraceElement("sun.nio.ch.NioSocketImpl", "timedRead", null, -1),
+                new StackTraceElement("java.net.Socket$SocketInputStream", "read", null, -1)});
+
+        assertThat(RetrySafety.isRequestNotSent(new ProcessingException(connectTimeout)), is(true));
+        assertThat(RetrySafety.isRequestNotSent(new ProcessingException(readTimeout)), is(false));
+        assertThat(RetrySafety.isRequestNotSent(new ProcessingException(new ConnectException())), is(true));
+    }
 }
@@ -0,0 +1,152 @@
+package dk.dbc.httpclient;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process upstream server for load tests serving a fixed HTML body, uncompressed, gzip or brotli
+ * encoded according to the Accept-Encoding header, with log-normally distributed latency and
+ * configurable rates of 500 errors and 429 responses carrying a Retry-After header.
+ * Any X-Request-Start header is echoed in the response.
+ */
+class FakeUpstream implements AutoCloseable {
+    static final String REQUEST_START = "X-Request-Start";
+
+    private static final byte[] HTML = readResource("brotli-pro.html");
+    private static final byte[] GZIP = readResource("brotli-pro.gzip");
+    private static final byte[] BROTLI = readResource("brotli-pro.br");
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final AtomicLong requests = new AtomicLong();
+    private volatile long medianLatencyNanos;
+    private volatile double latencySigma;
+    private volatile double errorRate;
+    private volatile double throttleRate;
+    private volatile int retryAfterSeconds;
+
+    FakeUpstream(int threads) {
+        try {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * @param median median latency
+     * @param sigma standard deviation of the logarithm of the latency, 0 for constant latency
+     * @return this upstream
+     */
+    FakeUpstream withLatency(Duration median, double sigma) {
+        medianLatencyNanos = median.toNanos();
+        latencySigma = sigma;
+        return this;
+    }
+
+    FakeUpstream withErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    FakeUpstream withThrottleRate(double throttleRate, int retryAfterSeconds) {
+        this.throttleRate = throttleRate;
+        this.retryAfterSeconds = retryAfterSeconds;
+        return this;
+    }
+
+    String getBaseUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    long getRequests() {
+        return requests.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        try (InputStream in = exchange.getRequestBody()) {
+            in.readAllBytes();
+            sleep(random);
+            final String requestStart = exchange.getRequestHeaders().getFirst(REQUEST_START);
+            if (requestStart != null) {
+                exchange.getResponseHeaders().set(REQUEST_START, requestStart);
+            }
+            final double outcome = random.nextDouble();
+            if (outcome < throttleRate) {
+                exchange.getResponseHeaders().set("Retry-After", Integer.toString(retryAfterSeconds));
+                exchange.sendResponseHeaders(429, -1);
+                return;
+            }
+            if (outcome < throttleRate + errorRate) {
+                exchange.sendResponseHeaders(500, -1);
+                return;
+            }
+            final String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            final byte[] body;
+            if ("br".equals(acceptEncoding)) {
+                exchange.getResponseHeaders().set("Content-Encoding", "br");
+                body = BROTLI;
+            } else if ("gzip".equals(acceptEncoding)) {
+                exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                body = GZIP;
+            } else {
+                body = HTML;
+            }
+            exchange.getResponseHeaders().set("Content-Type", "text/html");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void sleep(ThreadLocalRandom random) {
+        if (medianLatencyNanos <= 0) {
+            return;
+        }
+        final long latencyNanos = (long) (medianLatencyNanos * Math.exp(latencySigma * random.nextGaussian()));
+        try {
+            TimeUnit.NANOSECONDS.sleep(latencyNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static byte[] readResource(String name) {
+        try (InputStream in = FakeUpstream.class.getClassLoader().getResourceAsStream(name)) {
+            if (in == null) {
+                throw new IllegalStateException("Missing test resource " + name);
+            }
+            return in.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
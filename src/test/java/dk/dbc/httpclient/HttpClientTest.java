@@ -4,26 +4,66 @@ import com.github.tomakehurst.wiremock.WireMockServer;
 import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
 import com.github.tomakehurst.wiremock.http.Body;
 import com.github.tomakehurst.wiremock.http.ContentTypeHeader;
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
 import dk.dbc.commons.useragent.UserAgent;
+import jakarta.ws.rs.ProcessingException;
 import jakarta.ws.rs.client.Client;
 import jakarta.ws.rs.client.WebTarget;
 import jakarta.ws.rs.core.Response;
+import net.jodah.failsafe.RetryPolicy;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.configureFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.containing;
 import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
 import static com.github.tomakehurst.wiremock.client.WireMock.get;
 import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.head;
+import static com.github.tomakehurst.wiremock.client.WireMock.headRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.status;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlMatching;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 public class HttpClientTest {
     WireMockServer wireMockServer = startWireMockServer();
@@ -88,6 +128,971 @@ public class HttpClientTest {
         assertThat(baseResponse, is(gzipResponse));
     }
 
+    @Test
+    public void maxBodySize() {
+        HttpClient client = HttpClient.create(USER_AGENT).enableCompression().withMaxCompressedBodySize(1_000_000);
+        String response = new HttpGet(client).withBaseUrl(wireMockServer.baseUrl()).withPathElements("no-compression").executeAndExpect(Response.Status.OK, String.class);
+
+        assertThrows(ProcessingException.class, () -> new HttpGet(client)
+                .withBaseUrl(wireMockServer.baseUrl())
+                .withPathElements("no-compression")
+                .withMaxCompressedBodySize(response.length() / 2)
+                .executeAndExpect(Response.Status.OK, String.class));
+        assertThrows(ProcessingException.class, () -> new HttpGet(client)
+                .withBaseUrl(wireMockServer.baseUrl())
+                .withPathElements("compression")
+                .withCompression(Decompressor.GZIP)
+                .withMaxDecompressedBodySize(response.length() / 2)
+                .executeAndExpect(Response.Status.OK, String.class));
+        String gzipResponse = new HttpGet(client)
+                .withBaseUrl(wireMockServer.baseUrl())
+                .withPathElements("compression")
+                .withCompression(Decompressor.GZIP)
+                .withMaxDecompressedBodySize(response.length() * 2L)
+                .executeAndExpect(Response.Status.OK, String.class);
+        assertThat(gzipResponse, is(response));
+    }
+
+    @Test
+    public void warmUp() {
+        wireMockServer.stubFor(head(urlMatching("/")).willReturn(status(200)));
+        try (DnsCache dnsCache = new DnsCache(Duration.ofMinutes(1))) {
+            HttpClient client = HttpClient.create(USER_AGENT).withDnsCache(dnsCache);
+            int succeeded = client.warmUp(List.of(wireMockServer.baseUrl(), "http://no.such.host.invalid"), 3);
+            assertThat(succeeded, is(3));
+            assertThat(dnsCache.size(), is(1));
+        }
+        wireMockServer.verify(3, headRequestedFor(urlMatching("/")));
+    }
+
+    @Test
+    public void warmUpGivesUpAfterTimeout() {
+        wireMockServer.stubFor(head(urlMatching("/stalled")).willReturn(status(200).withFixedDelay(5000)));
+        HttpClient client = HttpClient.create(USER_AGENT);
+        long start = System.nanoTime();
+        int succeeded = client.warmUp(List.of(wireMockServer.baseUrl() + "/stalled"), 2, Duration.ofMillis(200));
+        assertThat(succeeded, is(0));
+        assertThat(Duration.ofNanos(System.nanoTime() - start).compareTo(Duration.ofSeconds(3)) < 0, is(true));
+    }
+
+    @Test
+    public void tracing() {
+        InMemorySpanExporter exporter = new InMemorySpanExporter();
+        HttpClient client = HttpClient.create(USER_AGENT).withTracing(new Tracing(exporter));
+        String parent = "00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01";
+        new HttpGet(client)
+                .withBaseUrl(wireMockServer.baseUrl())
+                .withPath(new PathBuilder("sponge/{name}").bind("name", "bob"))
+                .withHeader(Tracing.TRACEPARENT, parent)
+                .executeAndExpect(Response.Status.OK)
+                .close();
+
+        assertThat(exporter.getSpans().size(), is(1));
+        Span span = exporter.getSpans().get(0);
+        assertThat(span.getTraceId(), is("0af7651916cd43dd8448eb211c80319c"));
+        assertThat(span.getParentSpanId(), is("b7ad6b7169203331"));
+        assertThat(span.getAttribute(Span.HTTP_METHOD), is("GET"));
+        assertThat(span.getAttribute(Span.URL_TEMPLATE), is(wireMockServer.baseUrl() + "/sponge/{name}"));
+        assertThat(span.getAttribute(Span.STATUS_CODE), is(200));
+        wireMockServer.verify(getRequestedFor(urlMatching("/sponge/bob"))
+                .withHeader(Tracing.TRACEPARENT, equalTo(Tracing.traceparent(span))));
+    }
+
+    @Test
+    public void noExecutionIsCreatedWithoutState() {
+        List<Boolean> bound = new ArrayList<>();
+        HttpClient client = HttpClient.create(USER_AGENT);
+        HttpGet httpGet = new HttpGet(client) {
+            @Override
+            public Response call() {
+                bound.add(Execution.current(this) != null);
+                return super.call();
+            }
+        }.withBaseUrl(wireMockServer.baseUrl()).withPathElements("json");
+        httpGet.execute().close();
+        client.withTracing(new Tracing(new InMemorySpanExporter()));
+        httpGet.execute().close();
+
+        assertThat(bound, is(List.of(false, true)));
+    }
+
+    @Test
+    public void concurrentExecutionsOfSameRequest() throws InterruptedException, ExecutionException, TimeoutException {
+        InMemorySpanExporter exporter = new InMemorySpanExporter();
+        ConnectionStats connectionStats = new ConnectionStats();
+        HttpClient client = HttpClient.create(USER_AGENT)
+                .withTracing(new Tracing(exporter))
+                .withConnectionStats(connectionStats);
+        HttpGet httpGet = new HttpGet(client).withBaseUrl(wireMockServer.baseUrl()).withPathElements("json");
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<CompletableFuture<Void>> executions = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                executions.add(CompletableFuture.runAsync(() -> httpGet.execute().close(), executor));
+            }
+            CompletableFuture.allOf(executions.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdown();
+        }
+
+        assertThat(exporter.getSpans().size(), is(64));
+        assertThat(exporter.getSpans().stream().allMatch(span -> span.getAttempts() == 1), is(true));
+        assertThat(connectionStats.getHost("localhost:" + wireMockServer.port()).getActive(), is(0));
+        assertThat(httpGet.getHeaders().containsKey(Tracing.TRACEPARENT), is(false));
+    }
+
+    @Test
+    public void slowRequestLog() throws InterruptedException {
+        wireMockServer.stubFor(get(urlMatching("/slow")).willReturn(status(200).withFixedDelay(200)));
+        List<Span> slowRequests = new CopyOnWriteArrayList<>();
+        try (SlowRequestLog slowRequestLog = new SlowRequestLog(Duration.ofMillis(100), slowRequests::add)
+                .withThreshold(wireMockServer.baseUrl() + "/not-found", Duration.ofMinutes(1))) {
+            HttpClient client = HttpClient.create(USER_AGENT).withSlowRequestLog(slowRequestLog);
+            new HttpGet(client).withBaseUrl(wireMockServer.baseUrl()).withPathElements("slow").execute().close();
+            new HttpGet(client).withBaseUrl(wireMockServer.baseUrl()).withPathElements("not-found").execute().close();
+            for (int i = 0; i < 50 && slowRequests.isEmpty(); i++) {
+                Thread.sleep(20);
+            }
+        }
+        assertThat(slowRequests.size(), is(1));
+        Span span = slowRequests.get(0);
+        assertThat(span.getAttribute(Span.URL_TEMPLATE), is(wireMockServer.baseUrl() + "/slow"));
+        assertThat(span.getAttempts(), is(1));
+        assertThat(span.getDuration().toMillis() >= 200, is(true));
+    }
+
+    @Test
+    public void ringBufferDropsOverwrittenElementsAcrossRounds() {
+        RingBuffer<String> buffer = new RingBuffer<>(2);
+        List<String> drained = new ArrayList<>();
+        buffer.offer("a");
+        buffer.offer("b");
+        assertThat(buffer.drain(drained::add), is(2));
+        // The second round overwrites "c" before it is consumed, the consumed slots of the first round are empty
+        buffer.offer("c");
+        buffer.offer("d");
+        buffer.offer("e");
+        assertThat(buffer.drain(drained::add), is(2));
+        assertThat(drained, is(List.of("a", "b", "d", "e")));
+        assertThat(buffer.getOverwritten(), is(1L));
+        assertThat(buffer.drain(drained::add), is(0));
+    }
+
+    @Test
+    public void publisher() throws InterruptedException, ExecutionException, TimeoutException {
+        HttpClient client = HttpClient.create(USER_AGENT);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Response> responses = new CopyOnWriteArrayList<>();
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            client.publisher(Stream.generate(() -> new HttpGet(client)
+                            .withBaseUrl(wireMockServer.baseUrl())
+                            .withPathElements("sponge", "bob")).limit(10).iterator(), 3, executor)
+                    .subscribe(new OneByOneSubscriber<>(responses::add, done));
+            done.get(10, TimeUnit.SECONDS);
+
+            assertThat(responses.size(), is(10));
+            for (Response response : responses) {
+                assertThat(response.getStatus(), is(200));
+                response.close();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void bodyPublisher() throws InterruptedException, ExecutionException, TimeoutException {
+        HttpClient client = HttpClient.create(USER_AGENT).enableCompression();
+        String expected = new HttpGet(client).withBaseUrl(wireMockServer.baseUrl()).withPathElements("no-compression").executeAndExpect(String.class);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Response response = new HttpGet(client).withBaseUrl(wireMockServer.baseUrl()).withPathElements("compression").withCompression(Decompressor.GZIP).executeAndExpect();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            HttpClient.bodyPublisher(response, 512, executor).subscribe(new OneByOneSubscriber<ByteBuffer>(chunk -> {
+                assertThat(chunk.remaining() <= 512, is(true));
+                body.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+            }, done));
+            done.get(10, TimeUnit.SECONDS);
+
+            assertThat(body.toString(StandardCharsets.UTF_8), is(expected));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static class OneByOneSubscriber<T> implements Flow.Subscriber<T> {
+        private final Consumer<T> consumer;
+        private final CompletableFuture<Void> done;
+        private Flow.Subscription subscription;
+
+        OneByOneSubscriber(Consumer<T> consumer, CompletableFuture<Void> done) {
+            this.consumer = consumer;
+            this.done = done;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(T item) {
+            consumer.accept(item);
+            subscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            done.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            done.complete(null);
+        }
+    }
+
+    @Test
+    public void eventStream() {
+        wireMockServer.stubFor(get(urlMatching("/events")).willReturn(status(200)
+                .withHeader("Content-Type", "text/event-stream")
+                .withBody(": comment\nid: 1\ndata: a\n\nretry: 10\n\nevent: update\ndata: b\ndata: c\n\nretry: -1\n\n")));
+        HttpClient client = HttpClient.create(USER_AGENT);
+        List<ServerSentEvent> events = new ArrayList<>();
+        HttpGet httpGet = new HttpGet(client)
+                .withBaseUrl(wireMockServer.baseUrl())
+                .withPathElements("events");
+        httpGet.executeEventStream(events::add);
+
+        // A block with only a retry field updates the reconnection time without dispatching an event
+        assertThat(events.size(), is(2));
+        assertThat(events.get(0).getId(), is("1"));
+        assertThat(events.get(0).getName(), is("message"));
+        assertThat(events.get(0).getData(), is("a"));
+        assertThat(events.get(0).getRetry(), is(nullValue()));
+        assertThat(events.get(1).getId(), is("1"));
+        assertThat(events.get(1).getName(), is("update"));
+        assertThat(events.get(1).getData(), is("b\nc"));
+        assertThat(events.get(1).getRetry(), is(10L));
+        wireMockServer.verify(getRequestedFor(urlMatching("/events"))
+                .withHeader("Accept", equalTo("text/event-stream")));
+        assertThat(httpGet.getHeaders().containsKey("Accept"), is(false));
+    }
+
+    @Test
+    public void failSafeEventStreamReconnectsAfterReconnectionTime() {
+        wireMockServer.stubFor(get(urlMatching("/feed")).inScenario("feed")
+                .whenScenarioStateIs(Scenario.STARTED)
+                .willReturn(status(200)
+                        .withHeader("Content-Type", "text/event-stream")
+                        .withBody("retry: 500\nid: 1\ndata: a\n\n"))
+                .willSetStateTo("reconnected"));
+        wireMockServer.stubFor(get(urlMatching("/feed")).inScenario("feed")
+                .whenScenarioStateIs("reconnected")
+                .withHeader("Last-Event-ID", equalTo("1"))
+                .willReturn(status(200)
+                        .withHeader("Content-Type", "text/event-stream")
+                        .withBody("id: 2\ndata: b\n\n"))
+                .willSetStateTo("ended"));
+        wireMockServer.stubFor(get(urlMatching("/feed")).inScenario("feed")
+                .whenScenarioStateIs("ended")
+                .willReturn(status(204)));
+        RetryPolicy<Response> retryPolicy = new RetryPolicy<Response>()
+                .handle(ProcessingException.class)
+                .withDelay(Duration.ofMillis(1))
+                .withMaxRetries(3);
+        Client client = HttpClient.newClient();
+        try {
+            FailSafeHttpClient failSafeHttpClient = FailSafeHttpClient.create(client, USER_AGENT, retryPolicy);
+            List<ServerSentEvent> events = new ArrayList<>();
+            long start = System.nanoTime();
+            new HttpGet(failSafeHttpClient)
+                    .withBaseUrl(wireMockServer.baseUrl())
+                    .withPathElements("feed")
+                    .executeEventStream(events::add);
+            Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+            // Both reconnects after the streams ended wait the reconnection time requested by the server
+            assertThat(events.size(), is(2));
+            assertThat(events.get(0).getData(), is("a"));
+            assertThat(events.get(1).getData(), is("b"));
+            assertThat("elapsed " + elapsed, elapsed.compareTo(Duration.ofMillis(1000)) >= 0, is(true));
+            wireMockServer.verify(3, getRequestedFor(urlMatching("/feed")));
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void eventStreamFailsOnNonPositiveRequest() {
+        wireMockServer.stubFor(get(urlMatching("/events")).willReturn(status(200)
+                .withHeader("Content-Type", "text/event-stream")
+                .withBody("data: a\n\ndata: b\n\n")));
+        HttpClient client = HttpClient.create(USER_AGENT);
+        List<ServerSentEvent> events = new ArrayList<>();
+        List<Throwable> errors = new ArrayList<>();
+        new HttpGet(client)
+                .withBaseUrl(wireMockServer.baseUrl())
+                .withPathElements("events")
+                .executeEventStream(new Flow.Subscriber<ServerSentEvent>() {
+                    private Flow.Subscription subscription;
+
+                    @Override
+                    public void onSubscribe(Flow.Subscription subscription) {
+                        this.subscription = subscription;
+                        subscription.request(1);
+                    }
+
+                    @Override
+                    public void onNext(ServerSentEvent item) {
+                        events.add(item);
+                        subscription.request(0);
+                    }
+
+                    @Override
+                    public void onError(Throwable throwable) {
+                        errors.add(throwable);
+                    }
+
+                    @Override
+                    public void onComplete() {
+                        errors.add(null);
+                    }
+                });
+
+        assertThat(events.size(), is(1));
+        assertThat(errors.size(), is(1));
+        assertThat(errors.get(0) instanceof IllegalArgumentException, is(true));
+    }
+
+    @Test
+    public void multipart(@TempDir Path tempDir) throws IOException {
+        wireMockServer.stubFor(post(urlMatching("/upload")).willReturn(status(204)));
+        Path file = tempDir.resolve("report.txt");
+        Files.writeString(file, "file content");
+        MultipartBody body = new MultipartBody()
+                .withTextPart("title", "Annual report");
+        HttpClient client = HttpClient.create(USER_AGENT);
+        HttpPost httpPost = new HttpPost(client)
+                .withBaseUrl(wireMockServer.baseUrl())
+                .withPathElements("upload")
+                .withMultipartData(body);
+        // Parts added after the body was set are included in the Content-Length
+        body.withFilePart("file", file, "text/plain");
+        httpPost.executeAndExpect(Response.Status.NO_CONTENT).close();
+        assertThat(httpPost.getHeaders().containsKey("Content-Length"), is(false));
+
+        wireMockServer.verify(postRequestedFor(urlMatching("/upload"))
+                .withHeader("Content-Type", containing("multipart/form-data; boundary="))
+                .withHeader("Content-Length", equalTo(Long.toString(body.getContentLength())))
+                .withRequestBody(containing("Content-Disposition: form-data; name=\"file\"; filename=\"report.txt\"\r\nContent-Type: text/plain\r\n\r\nfile content\r\n")));
+    }
+
+    @Test
+    public void multipartWithKnownLengthIsStreamed() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        try (ServerSocket server = new ServerSocket(0)) {
+            CountDownLatch received = new CountDownLatch(1);
+            CompletableFuture<Void> serving = CompletableFuture.runAsync(() -> {
+                try (Socket socket = server.accept()) {
+                    InputStream in = socket.getInputStream();
+                    ByteArrayOutputStream head = new ByteArrayOutputStream();
+                    while (!head.toString(StandardCharsets.ISO_8859_1).endsWith("\r\n\r\n")) {
+                        head.write(in.read());
+                    }
+                    Matcher contentLength = Pattern.compile("(?i)content-length: (\\d+)")
+                            .matcher(head.toString(StandardCharsets.ISO_8859_1));
+                    if (contentLength.find()) {
+                        in.readNBytes(Integer.parseInt(contentLength.group(1)));
+                        received.countDown();
+                    }
+                    socket.getOutputStream().write("HTTP/1.1 204 No Content\r\nConnection: close\r\n\r\n"
+                            .getBytes(StandardCharsets.ISO_8859_1));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            AtomicBoolean receivedWhileWriting = new AtomicBoolean();
+            MultipartBody body = new MultipartBody() {
+                @Override
+                public void write(OutputStream out) throws IOException {
+                    super.write(out);
+                    out.flush();
+                    // A buffered body is only sent once written in full
+                    try {
+                        receivedWhileWriting.set(received.await(5, TimeUnit.SECONDS));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }.withTextPart("title", "Annual report");
+
+            new HttpPost(HttpClient.create(USER_AGENT))
+                    .withBaseUrl("http://localhost:" + server.getLocalPort())
+                    .withPathElements("upload")
+                    .withMultipartData(body)
+                    .executeAndExpect(Response.Status.NO_CONTENT)
+                    .close();
+            serving.get(10, TimeUnit.SECONDS);
+            assertThat(receivedWhileWriting.get(), is(true));
+        }
+    }
+
+    @Test
+    public void rangedDownload(@TempDir Path tempDir) throws IOException {
+        stubRangedResource("/ranged/download", "\"v1\"", true);
+        Path target = tempDir.resolve("download.bin");
+        HttpClient client = HttpClient.create(USER_AGENT);
+        new RangedDownload(client)
+                .withParallelism(2)
+                .withPartSize(10)
+                .download(new HttpGet(client).withBaseUrl(wireMockServer.baseUrl()).withPathElements("ranged", "download"), target);
+
+        assertThat(Files.readAllBytes(target), is(RANGED_CONTENT));
+        assertThat(Files.exists(tempDir.resolve("download.bin" + RangedDownload.STATE_FILE_SUFFIX)), is(false));
+        wireMockServer.verify(3, getRequestedFor(urlMatching("/ranged/download"))
+                .withHeader("If-Range", equalTo("\"v1\"")));
+    }
+
+    @Test
+    public void rangedDownloadWithoutRangeSupport(@TempDir Path tempDir) throws IOException {
+        wireMockServer.stubFor(head(urlMatching("/ranged/whole")).willReturn(status(200).withBody(RANGED_CONTENT)));
+        wireMockServer.stubFor(get(urlMatching("/ranged/whole")).willReturn(status(200).withBody(RANGED_CONTENT)));
+        Path target = tempDir.resolve("whole.bin");
+        HttpClient client = HttpClient.create(USER_AGENT);
+        new RangedDownload(client)
+                .withPartSize(10)
+                .download(new HttpGet(client).withBaseUrl(wireMockServer.baseUrl()).withPathElements("ranged", "whole"), target);
+
+        assertThat(Files.readAllBytes(target), is(RANGED_CONTENT));
+        wireMockServer.verify(1, getRequestedFor(urlMatching("/ranged/whole")).withoutHeader("Range"));
+    }
+
+    @Test
+    public void rangedDownloadResumes(@TempDir Path tempDir) throws IOException {
+        stubRangedResource("/ranged/resume", "\"v1\"", true);
+        Path target = tempDir.resolve("resume.bin");
+        byte[] partial = new byte[RANGED_CONTENT.length];
+        System.arraycopy(RANGED_CONTENT, 0, partial, 0, 10);
+        Files.write(target, partial);
+        Files.writeString(tempDir.resolve("resume.bin" + RangedDownload.STATE_FILE_SUFFIX),
+                RANGED_CONTENT.length + " 10 \"v1\"\n0\n");
+        HttpClient client = HttpClient.create(USER_AGENT);
+        new RangedDownload(client)
+                .withPartSize(10)
+                .download(new HttpGet(client).withBaseUrl(wireMockServer.baseUrl()).withPathElements("ranged", "resume"), target);
+
+        assertThat(Files.readAllBytes(target), is(RANGED_CONTENT));
+        wireMockServer.verify(0, getRequestedFor(urlMatching("/ranged/resume")).withHeader("Range", equalTo("bytes=0-9")));
+        wireMockServer.verify(2, getRequestedFor(urlMatching("/ranged/resume")));
+    }
+
+    @Test
+    public void rangedDownloadFailsWhenResourceChanges(@TempDir Path tempDir) throws IOException {
+        stubRangedResource("/ranged/changed", "\"v1\"", false);
+        // The resource changes after the first range, so If-Range no longer matches
+        wireMockServer.stubFor(get(urlMatching("/ranged/changed")).withHeader("Range", equalTo("bytes=10-19"))
+                .willReturn(status(200).withHeader("ETag", "\"v2\"").withBody(RANGED_CONTENT)));
+        Path target = tempDir.resolve("changed.bin");
+        HttpClient client = HttpClient.create(USER_AGENT);
+        HttpGet request = new HttpGet(client).withBaseUrl(wireMockServer.baseUrl()).withPathElements("ranged", "changed");
+        RangedDownload download = new RangedDownload(client).withParallelism(1).withPartSize(10);
+
+        UnexpectedStatusCodeException e = assertThrows(UnexpectedStatusCodeException.class,
+                () -> download.download(request, target));
+        e.close();
+        assertThat(e.getStatus(), is(200));
+
+        // Downloading again starts over with the new version
+        stubRangedResource("/ranged/changed", "\"v2\"", true);
+        download.download(request, target);
+        assertThat(Files.readAllBytes(target), is(RANGED_CONTENT));
+        wireMockServer.verify(2, getRequestedFor(urlMatching("/ranged/changed")).withHeader("Range", equalTo("bytes=0-9")));
+    }
+
+    @Test
+    public void rangedDownloadWithWeakETag(@TempDir Path tempDir) throws IOException {
+        // Weak ETags are not allowed in If-Range, so the Last-Modified date is used if there is one
+        String lastModified = "Tue, 15 Oct 2026 08:00:00 GMT";
+        assertThat(RangedDownload.ifRangeValidator("W/\"v1\"", lastModified), is(lastModified));
+        assertThat(RangedDownload.ifRangeValidator("\"v1\"", lastModified), is("\"v1\""));
+
+        // and otherwise the resource is downloaded whole
+        wireMockServer.stubFor(head(urlMatching("/ranged/weak")).willReturn(status(200)
+                .withHeader("Accept-Ranges", "bytes").withHeader("ETag", "W/\"v1\"").withBody(RANGED_CONTENT)));
+        wireMockServer.stubFor(get(urlMatching("/ranged/weak")).willReturn(status(200).withBody(RANGED_CONTENT)));
+        Path target = tempDir.resolve("weak.bin");
+        HttpClient client = HttpClient.create(USER_AGENT);
+        new RangedDownload(client)
+                .withPartSize(10)
+                .download(new HttpGet(client).withBaseUrl(wireMockServer.baseUrl()).withPathElements("ranged", "weak"), target);
+
+        assertThat(Files.readAllBytes(target), is(RANGED_CONTENT));
+        wireMockServer.verify(1, getRequestedFor(urlMatching("/ranged/weak")).withoutHeader("Range"));
+    }
+
+    @Test
+    public void rangedDownloadFailsOnWrongContentRange(@TempDir Path tempDir) {
+        wireMockServer.stubFor(head(urlMatching("/ranged/wrong")).willReturn(status(200)
+                .withHeader("Accept-Ranges", "bytes").withHeader("ETag", "\"v1\"").withBody(RANGED_CONTENT)));
+        wireMockServer.stubFor(get(urlMatching("/ranged/wrong")).willReturn(status(206)
+                .withHeader("Content-Range", "bytes 10-19/" + RANGED_CONTENT.length)
+                .withBody(Arrays.copyOfRange(RANGED_CONTENT, 10, 20))));
+        Path target = tempDir.resolve("wrong.bin");
+        HttpClient client = HttpClient.create(USER_AGENT);
+        HttpGet request = new HttpGet(client).withBaseUrl(wireMockServer.baseUrl()).withPathElements("ranged", "wrong");
+
+        assertThrows(ProcessingException.class, () -> new RangedDownload(client)
+                .withParallelism(1)
+                .withPartSize(10)
+                .download(request, target));
+    }
+
+    private static final byte[] RANGED_CONTENT = "0123456789abcdefghijklmno".getBytes(StandardCharsets.US_ASCII);
+
+    private void stubRangedResource(String path, String etag, boolean allRanges) {
+        wireMockServer.stubFor(head(urlMatching(path)).willReturn(status(200)
+                .withHeader("Accept-Ranges", "bytes").withHeader("ETag", etag).withBody(RANGED_CONTENT)));
+        for (int from = 0; from < RANGED_CONTENT.length; from += 10) {
+            int to = Math.min(from + 10, RANGED_CONTENT.length) - 1;
+            if (from > 0 && !allRanges) {
+                break;
+            }
+            wireMockServer.stubFor(get(urlMatching(path)).withHeader("Range", equalTo("bytes=" + from + "-" + to))
+                    .withHeader("If-Range", equalTo(etag))
+                    .willReturn(status(206)
+                            .withHeader("Content-Range", "bytes " + from + "-" + to + "/" + RANGED_CONTENT.length)
+                            .withBody(Arrays.copyOfRange(RANGED_CONTENT, from, to + 1))));
+        }
+    }
+
+    @Test
+    public void executeAndExpectSetOfStatuses() {
+        HttpClient client = HttpClient.create(USER_AGENT);
+        try (Response response = new HttpGet(client)
+                .withBaseUrl(wireMockServer.baseUrl())
+                .withPathElements("not-found")
+                .executeAndExpect(Set.of(200, 404))) {
+            assertThat(response.getStatus(), is(404));
+        }
+
+        UnexpectedStatusCodeException e = assertThrows(UnexpectedStatusCodeException.class, () -> new HttpGet(client)
+                .withBaseUrl(wireMockServer.baseUrl())
+                .withPathElements("not-found")
+                .executeAndExpect(Set.of(200)));
+        e.close();
+        assertThat(e.getStatus(), is(404));
+        assertThat(e.getStatusCode(), is(Response.Status.NOT_FOUND));
+        assertThat(e.getStackTrace().length, is(0));
+    }
+
+    @Test
+    public void executeAndHandle() {
+        HttpClient client = HttpClient.create(USER_AGENT);
+        Map<Integer, Function<Response, String>> handlers = Map.of(
+                200, response -> response.readEntity(String.class),
+                404, response -> null);
+        String found = new HttpGet(client)
+                .withBaseUrl(wireMockServer.baseUrl())
+                .withPathElements("no-compression")
+                .executeAndHandle(handlers);
+        String notFound = new HttpGet(client)
+                .withBaseUrl(wireMockServer.baseUrl())
+                .withPathElements("not-found")
+                .executeAndHandle(handlers);
+        assertThat(found.isEmpty(), is(false));
+        assertThat(notFound, is(nullValue()));
+    }
+
+    @Test
+    public void jsonCodec() {
+        HttpClient client = HttpClient.create(USER_AGENT).withJsonCodec(new RawJsonCodec());
+        RawJson json = new HttpGet(client)
+                .withBaseUrl(wireMockServer.baseUrl())
+                .withPathElements("json")
+                .executeAndExpect(RawJson.class);
+        assertThat(json.value(), is("{\"answer\":42}"));
+
+        wireMockServer.stubFor(post(urlMatching("/json")).willReturn(status(204)));
+        HttpPost httpPost = new HttpPost(client)
+                .withBaseUrl(wireMockServer.baseUrl())
+                .withPathElements("json")
+                .withJsonData(json);
+        // The data object is kept as the entity, the codec is applied when it is written
+        assertThat(httpPost.getEntity().getEntity(), is(json));
+        assertThat(httpPost.equals(new HttpPost(client)
+                .withBaseUrl(wireMockServer.baseUrl())
+                .withPathElements("json")
+                .withJsonData(new RawJson("{\"answer\":42}"))), is(true));
+        httpPost.executeAndExpect(Response.Status.NO_CONTENT).close();
+        wireMockServer.verify(postRequestedFor(urlMatching("/json"))
+                .withHeader("Content-Type", equalTo("application/json"))
+                .withRequestBody(equalTo("{\"answer\":42}")));
+    }
+
+    @Test
+    public void pipelinedBatch() {
+        HttpClient client = HttpClient.create(USER_AGENT);
+        List<HttpGet> requests = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            requests.add(new HttpGet(client).withBaseUrl(wireMockServer.baseUrl()).withPathElements("json"));
+        }
+        requests.add(new HttpGet(client).withBaseUrl(wireMockServer.baseUrl()).withPathElements("not-found"));
+        requests.add(new HttpGet(client).withBaseUrl(wireMockServer.baseUrl()).withPathElements("compression")
+                .withCompression(Decompressor.GZIP));
+        String uncompressed = new HttpGet(client).withBaseUrl(wireMockServer.baseUrl()).withPathElements("no-compression")
+                .executeAndExpect(Response.Status.OK, String.class);
+
+        List<PipelinedResponse> responses = new PipelinedBatch(client)
+                .withConnections(2)
+                .withMaxInFlight(4)
+                .execute(requests);
+        assertThat(responses.size(), is(12));
+        for (PipelinedResponse response : responses.subList(0, 10)) {
+            assertThat(response.toString(), response.getStatus(), is(200));
+            assertThat(response.getEntityAsString(), is("{\"answer\":42}"));
+        }
+        assertThat(responses.get(10).getStatus(), is(404));
+        assertThat(responses.get(11).getEntityAsString(), is(uncompressed));
+        wireMockServer.verify(getRequestedFor(urlMatching("/json"))
+                .withHeader("User-Agent", equalTo(USER_AGENT.toString())));
+
+        assertThrows(IllegalArgumentException.class, () -> new PipelinedBatch(client)
+                .execute(List.of(new HttpPost(client).withBaseUrl(wireMockServer.baseUrl()))));
+        assertThrows(IllegalArgumentException.class, () -> new PipelinedBatch(client)
+                .execute(List.of(new HttpGet(client).withBaseUrl(wireMockServer.baseUrl())
+                        .withHeader("X-Smuggled", "value\r\n\r\nGET /admin HTTP/1.1"))));
+    }
+
+    @Test
+    public void pipelinedBatchBodySizeLimit() {
+        HttpClient client = HttpClient.create(USER_AGENT).withMaxCompressedBodySize(1000);
+        List<HttpGet> requests = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            HttpGet httpGet = new HttpGet(client).withBaseUrl(wireMockServer.baseUrl()).withPathElements("json");
+            requests.add(i == 2 ? httpGet.withMaxCompressedBodySize(5) : httpGet);
+        }
+
+        List<PipelinedResponse> responses = new PipelinedBatch(client)
+                .withConnections(1)
+                .withMaxInFlight(6)
+                .execute(requests);
+        assertThat(responses.get(2).getFailure() instanceof BodySizeLimitExceededException, is(true));
+        // Requests following the one exceeding the limit are resent on a new connection
+        for (int i : List.of(0, 1, 3, 4, 5)) {
+            assertThat(responses.get(i).toString(), responses.get(i).getEntityAsString(), is("{\"answer\":42}"));
+        }
+    }
+
+    @Test
+    public void leakDetector() throws InterruptedException {
+        List<ResponseLeak> leaks = new CopyOnWriteArrayList<>();
+        LeakDetector leakDetector = new LeakDetector(1.0, leaks::add);
+        HttpClient client = HttpClient.create(USER_AGENT).withLeakDetector(leakDetector);
+        HttpGet httpGet = new HttpGet(client).withBaseUrl(wireMockServer.baseUrl()).withPathElements("json");
+
+        httpGet.execute().close();
+        assertThat(httpGet.executeAndExpect(String.class), is("{\"answer\":42}"));
+        assertThat(leakDetector.getOpen(), is(0L));
+
+        leakResponse(httpGet);
+        assertThat(leakDetector.getOpen(), is(1L));
+        for (int i = 0; i < 100 && leakDetector.getLeaked() == 0; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertThat(leakDetector.getLeaked(), is(1L));
+        assertThat(leaks.get(0).getStatus(), is(200));
+        assertThat(leaks.get(0).getStackTrace().length > 0, is(true));
+    }
+
+    @Test
+    public void diskCache(@TempDir Path cacheDirectory) {
+        wireMockServer.stubFor(get(urlMatching("/cached")).withHeader("accept-encoding", equalTo("gzip")).willReturn(
+                status(200).withHeader("content-encoding", "gzip").withHeader("cache-control", "max-age=60")
+                        .withResponseBody(Body.ofBinaryOrText(readFile("brotli-pro.gzip"), new ContentTypeHeader("text/html")))));
+        String uncompressed = new String(readFile("brotli-pro.html"), StandardCharsets.UTF_8);
+
+        DiskCache diskCache = new DiskCache(cacheDirectory, 10_000_000);
+        HttpClient client = HttpClient.create(USER_AGENT).enableCompression().withDiskCache(diskCache);
+        for (int i = 0; i < 2; i++) {
+            String response = new HttpGet(client).withBaseUrl(wireMockServer.baseUrl()).withPathElements("cached")
+                    .withCompression(Decompressor.GZIP).executeAndExpect(String.class);
+            assertThat(response, is(uncompressed));
+        }
+        assertThat(diskCache.getHits(), is(1L));
+        assertThat(diskCache.size(), is(1));
+        assertThat("stored compressed", diskCache.getSize() < readFile("brotli-pro.html").length, is(true));
+
+        // Survives restarts
+        DiskCache reopened = new DiskCache(cacheDirectory, 10_000_000);
+        HttpClient restarted = HttpClient.create(USER_AGENT).enableCompression().withDiskCache(reopened);
+        String response = new HttpGet(restarted).withBaseUrl(wireMockServer.baseUrl()).withPathElements("cached")
+                .withCompression(Decompressor.GZIP).executeAndExpect(String.class);
+        assertThat(response, is(uncompressed));
+        assertThat(reopened.getHits(), is(1L));
+        wireMockServer.verify(1, getRequestedFor(urlMatching("/cached")));
+    }
+
+    @Test
+    public void diskCacheBypassedByAuthorizedRequests(@TempDir Path cacheDirectory) {
+        wireMockServer.stubFor(get(urlMatching("/authorized")).willReturn(
+                status(200).withHeader("cache-control", "max-age=60").withBody("secret")));
+        DiskCache diskCache = new DiskCache(cacheDirectory, 10_000_000);
+        HttpClient client = HttpClient.create(USER_AGENT).withDiskCache(diskCache);
+        for (int i = 0; i < 2; i++) {
+            assertThat(new HttpGet(client).withBaseUrl(wireMockServer.baseUrl()).withPathElements("authorized")
+                    .withHeader("Authorization", "Bearer token")
+                    .executeAndExpect(String.class), is("secret"));
+        }
+        assertThat(diskCache.size(), is(0));
+        wireMockServer.verify(2, getRequestedFor(urlMatching("/authorized")));
+    }
+
+    @Test
+    public void diskCacheDoesNotStorePrivateResponses(@TempDir Path cacheDirectory) {
+        wireMockServer.stubFor(get(urlMatching("/private")).willReturn(
+                status(200).withHeader("cache-control", "private, max-age=60").withBody("mine")));
+        DiskCache diskCache = new DiskCache(cacheDirectory, 10_000_000);
+        HttpClient client = HttpClient.create(USER_AGENT).withDiskCache(diskCache);
+        for (int i = 0; i < 2; i++) {
+            assertThat(new HttpGet(client).withBaseUrl(wireMockServer.baseUrl()).withPathElements("private")
+                    .executeAndExpect(String.class), is("mine"));
+        }
+        assertThat(diskCache.size(), is(0));
+        wireMockServer.verify(2, getRequestedFor(urlMatching("/private")));
+    }
+
+    @Test
+    public void diskCacheDoesNotStoreResponsesVaryingByOtherHeaders(@TempDir Path cacheDirectory) {
+        wireMockServer.stubFor(get(urlMatching("/vary/any")).willReturn(
+                status(200).withHeader("cache-control", "max-age=60").withHeader("vary", "*").withBody("any")));
+        wireMockServer.stubFor(get(urlMatching("/vary/cookie")).willReturn(
+                status(200).withHeader("cache-control", "max-age=60").withHeader("vary", "Accept-Encoding, Cookie")
+                        .withBody("cookie")));
+        wireMockServer.stubFor(get(urlMatching("/vary/encoding")).willReturn(
+                status(200).withHeader("cache-control", "max-age=60").withHeader("vary", "Accept-Encoding")
+                        .withBody("encoding")));
+        DiskCache diskCache = new DiskCache(cacheDirectory, 10_000_000);
+        HttpClient client = HttpClient.create(USER_AGENT).withDiskCache(diskCache);
+        for (String path : List.of("any", "cookie", "encoding")) {
+            for (int i = 0; i < 2; i++) {
+                assertThat(new HttpGet(client).withBaseUrl(wireMockServer.baseUrl()).withPathElements("vary", path)
+                        .executeAndExpect(String.class), is(path));
+            }
+        }
+        wireMockServer.verify(2, getRequestedFor(urlMatching("/vary/any")));
+        wireMockServer.verify(2, getRequestedFor(urlMatching("/vary/cookie")));
+        // Accept-Encoding is part of the cache key
+        wireMockServer.verify(1, getRequestedFor(urlMatching("/vary/encoding")));
+        assertThat(diskCache.size(), is(1));
+    }
+
+    @Test
+    public void clientRegistry() {
+        ClientRegistry registry = new ClientRegistry();
+        HttpClient first = registry.newHttpClient(USER_AGENT);
+        UserAgent secondUserAgent = new UserAgent("SecondClient");
+        HttpClient second = registry.newHttpClient(secondUserAgent);
+        assertThat(registry.getReferences(), is(2));
+
+        HttpClient.closeClient(first.getClient());
+        HttpClient.closeClient(first.getClient());
+        assertThat(registry.getReferences(), is(1));
+        assertThrows(ProcessingException.class, () -> new HttpGet(first)
+                .withBaseUrl(wireMockServer.baseUrl()).withPathElements("sponge", "bob").execute());
+        new HttpGet(second)
+                .withBaseUrl(wireMockServer.baseUrl())
+                .withPathElements("sponge", "bob")
+                .executeAndExpect(Response.Status.OK)
+                .close();
+        wireMockServer.verify(getRequestedFor(urlMatching("/sponge/bob"))
+                .withHeader("User-Agent", equalTo(secondUserAgent.toString())));
+
+        HttpClient.closeClient(second.getClient());
+        assertThat(registry.getReferences(), is(0));
+    }
+
+    @Test
+    public void clientRegistryKeepsSettingsPerClient() {
+        wireMockServer.stubFor(get(urlMatching("/slow")).willReturn(status(200).withFixedDelay(500)));
+        ClientRegistry registry = new ClientRegistry();
+        HttpClient first = registry.newHttpClient(USER_AGENT)
+                .enableCompression()
+                .withReadTimeout(Duration.ofMillis(50));
+        HttpClient second = registry.newHttpClient(USER_AGENT);
+        String uncompressed = new HttpGet(first).withBaseUrl(wireMockServer.baseUrl()).withPathElements("no-compression")
+                .executeAndExpect(Response.Status.OK, String.class);
+
+        assertThat(new HttpGet(first).withBaseUrl(wireMockServer.baseUrl()).withPathElements("compression")
+                .withCompression(Decompressor.GZIP)
+                .executeAndExpect(Response.Status.OK, String.class), is(uncompressed));
+        byte[] compressed = new HttpGet(second).withBaseUrl(wireMockServer.baseUrl()).withPathElements("compression")
+                .withCompression(Decompressor.GZIP)
+                .executeAndExpect(Response.Status.OK, byte[].class);
+        assertThat("gzip magic", compressed[0] == (byte) 0x1f && compressed[1] == (byte) 0x8b, is(true));
+
+        assertThrows(ProcessingException.class, () -> new HttpGet(first)
+                .withBaseUrl(wireMockServer.baseUrl())
+                .withPathElements("slow")
+                .execute());
+        new HttpGet(second).withBaseUrl(wireMockServer.baseUrl()).withPathElements("slow")
+                .executeAndExpect(Response.Status.OK)
+                .close();
+
+        HttpClient.closeClient(first.getClient());
+        HttpClient.closeClient(second.getClient());
+    }
+
+    @Test
+    public void connectionStats() {
+        ConnectionStats connectionStats = new ConnectionStats();
+        HttpClient client = HttpClient.create(USER_AGENT)
+                .withConnectionStats(connectionStats)
+                .withMaxConnectionsPerHost(1);
+        HttpGet httpGet = new HttpGet(client).withBaseUrl(wireMockServer.baseUrl()).withPathElements("json");
+        String host = "localhost:" + wireMockServer.port();
+
+        Response response = httpGet.execute();
+        HostStats hostStats = connectionStats.getHost(host);
+        assertThat(hostStats.getActive(), is(1));
+        assertThrows(DeadlineExceededException.class, () -> new HttpGet(client)
+                .withBaseUrl(wireMockServer.baseUrl())
+                .withPathElements("json")
+                .withDeadline(Duration.ofMillis(100))
+                .execute());
+        response.close();
+        assertThat(hostStats.getActive(), is(0));
+
+        assertThat(httpGet.executeAndExpect(String.class), is("{\"answer\":42}"));
+        assertThat(hostStats.getActive(), is(0));
+        assertThat(hostStats.getPending(), is(0));
+        assertThat(hostStats.getPeakActive(), is(1));
+        assertThat(hostStats.getRequests(), is(2L));
+        assertThat(hostStats.getMaxWaitTime().compareTo(Duration.ZERO) > 0, is(true));
+        // New plain HTTP connections can not be observed
+        assertThat(Double.isNaN(hostStats.getReuseRatio()), is(true));
+    }
+
+    @Test
+    public void priorities() throws InterruptedException, ExecutionException, TimeoutException {
+        ConnectionStats connectionStats = new ConnectionStats();
+        HttpClient client = HttpClient.create(USER_AGENT)
+                .withConnectionStats(connectionStats)
+                .withMaxConnectionsPerHost(2, 0.5)
+                .withPriorityAging(Duration.ZERO);
+        Function<Priority, HttpGet> newRequest = priority -> new HttpGet(client)
+                .withBaseUrl(wireMockServer.baseUrl())
+                .withPathElements("json")
+                .withPriority(priority);
+        HostStats hostStats;
+
+        // One of the two connections is reserved for high priority
+        try (Response normal = newRequest.apply(Priority.NORMAL).execute()) {
+            assertThrows(DeadlineExceededException.class, () -> newRequest.apply(Priority.NORMAL)
+                    .withDeadline(Duration.ofMillis(100))
+                    .execute());
+            newRequest.apply(Priority.HIGH).execute().close();
+            hostStats = connectionStats.getHost("localhost:" + wireMockServer.port());
+            assertThat(hostStats.getActive(), is(1));
+        }
+
+        // Aging moves a request ahead in line but does not give it access to reserved connections
+        HttpClient aging = HttpClient.create(USER_AGENT)
+                .withMaxConnectionsPerHost(2, 0.5)
+                .withPriorityAging(Duration.ofMillis(1));
+        try (Response normal = new HttpGet(aging)
+                .withBaseUrl(wireMockServer.baseUrl())
+                .withPathElements("json")
+                .execute()) {
+            assertThrows(DeadlineExceededException.class, () -> new HttpGet(aging)
+                    .withBaseUrl(wireMockServer.baseUrl())
+                    .withPathElements("json")
+                    .withPriority(Priority.LOW)
+                    .withDeadline(Duration.ofMillis(100))
+                    .execute());
+        }
+
+        // Waiting requests are served by priority
+        List<Priority> served = new CopyOnWriteArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Response high = newRequest.apply(Priority.HIGH).execute();
+            Response normal = newRequest.apply(Priority.NORMAL).execute();
+            CompletableFuture<Void> low = CompletableFuture.runAsync(() -> {
+                try (Response response = newRequest.apply(Priority.LOW).execute()) {
+                    served.add(Priority.LOW);
+                }
+            }, executor);
+            while (hostStats.getPending() < 1) {
+                Thread.sleep(5);
+            }
+            CompletableFuture<Void> highAgain = CompletableFuture.runAsync(() -> {
+                try (Response response = newRequest.apply(Priority.HIGH).execute()) {
+                    served.add(Priority.HIGH);
+                }
+            }, executor);
+            while (hostStats.getPending() < 2) {
+                Thread.sleep(5);
+            }
+            normal.close();
+            highAgain.get(10, TimeUnit.SECONDS);
+            high.close();
+            low.get(10, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdown();
+        }
+        assertThat(served, is(List.of(Priority.HIGH, Priority.LOW)));
+    }
+
+    @Test
+    public void smallBodyReleasesConnectionBeforeDecoding() {
+        ConnectionStats connectionStats = new ConnectionStats();
+        List<Integer> activeWhileDecoding = new ArrayList<>();
+        RawJsonCodec codec = new RawJsonCodec() {
+            @Override
+            public <T> T read(InputStream in, Class<T> type) throws IOException {
+                activeWhileDecoding.add(connectionStats.getHost("localhost:" + wireMockServer.port()).getActive());
+                return super.read(in, type);
+            }
+        };
+        Client sharedClient = HttpClient.newClient();
+        HttpClient client = HttpClient.create(sharedClient, USER_AGENT)
+                .withConnectionStats(connectionStats)
+                .withJsonCodec(codec)
+                .withSmallBodySize(8192);
+        HttpClient otherClient = HttpClient.create(sharedClient, USER_AGENT)
+                .withConnectionStats(connectionStats)
+                .withJsonCodec(codec);
+
+        assertThat(new HttpGet(client).withBaseUrl(wireMockServer.baseUrl()).withPathElements("json")
+                .executeAndExpect(RawJson.class).value(), is("{\"answer\":42}"));
+        // Not enabled by default, and not enabled for other clients sharing the web resources client
+        assertThat(new HttpGet(otherClient).withBaseUrl(wireMockServer.baseUrl()).withPathElements("json")
+                .executeAndExpect(RawJson.class).value(), is("{\"answer\":42}"));
+        assertThat(activeWhileDecoding, is(List.of(0, 1)));
+    }
+
+    private static void leakResponse(HttpGet httpGet) {
+        httpGet.execute();
+    }
+
+    private record RawJson(String value) {}
+
+    private static class RawJsonCodec implements EntityCodec {
+        @Override
+        public <T> T read(InputStream in, Class<T> type) throws IOException {
+            return type.cast(new RawJson(new String(in.readAllBytes(), StandardCharsets.UTF_8)));
+        }
+
+        @Override
+        public void write(Object entity, OutputStream out) throws IOException {
+            out.write(((RawJson) entity).value().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
     private static WireMockServer startWireMockServer() {
         WireMockServer server = new WireMockServer(new WireMockConfiguration().dynamicPort());
         server.start();
@@ -97,6 +1102,10 @@ public class HttpClientTest {
                 status(200).withHeader("content-encoding", "br").withResponseBody(Body.ofBinaryOrText(readFile("brotli-pro.br"), new ContentTypeHeader("text/html")))));
         server.stubFor(get(urlMatching("/compression")).withHeader("accept-encoding", equalTo("gzip")).willReturn(
                 status(200).withHeader("content-encoding", "gzip").withResponseBody(Body.ofBinaryOrText(readFile("brotli-pro.gzip"), new ContentTypeHeader("text/html")))));
+        server.stubFor(get(urlMatching("/not-found")).willReturn(status(404)));
+        server.stubFor(get(urlMatching("/sponge/bob")).willReturn(status(200)));
+        server.stubFor(get(urlMatching("/json")).willReturn(status(200)
+                .withHeader("Content-Type", "application/json").withBody("{\"answer\":42}")));
         return server;
     }
 
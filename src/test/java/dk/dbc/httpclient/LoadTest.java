@@ -0,0 +1,285 @@
+package dk.dbc.httpclient;
+
+import dk.dbc.commons.useragent.UserAgent;
+import jakarta.ws.rs.core.Response;
+import net.jodah.failsafe.RetryPolicy;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+/**
+ * Throughput and latency regression test of the blocking, asynchronous and retrying execution paths
+ * against an in-process {@link FakeUpstream}.
+ * <p>
+ * Excluded from the default build and not run by the CI pipeline, it is run manually by
+ * {@code mvn test -P load-test}, preferably on an otherwise idle machine. The measured throughput and
+ * latency percentiles are compared to the budgets of load-test-baseline.properties, which are absolute
+ * and depend on the machine, so they are to be calibrated by a run of the baseline on the machine at hand.
+ * Each budget can be overridden by a system property prefixed by "loadtest.", e.g.
+ * {@code -Dloadtest.blocking.p99Micros=20000}.
+ * The number of requests and the concurrency are given by the system properties loadtest.requests
+ * and loadtest.concurrency.
+ * </p>
+ */
+@Tag("load")
+public class LoadTest {
+    private static final UserAgent USER_AGENT = new UserAgent("LoadTest");
+    private static final int REQUESTS = Integer.getInteger("loadtest.requests", 20_000);
+    private static final int CONCURRENCY = Integer.getInteger("loadtest.concurrency", 32);
+    private static final int WARM_UP_REQUESTS = Math.min(REQUESTS, 2_000);
+    private static final Properties BASELINE = readBaseline();
+
+    private static FakeUpstream upstream;
+    private static FakeUpstream unreliableUpstream;
+    private static ExecutorService executor;
+
+    @BeforeAll
+    public static void startUpstreams() {
+        upstream = new FakeUpstream(4 * CONCURRENCY)
+                .withLatency(Duration.ofMillis(2), 0.5);
+        unreliableUpstream = new FakeUpstream(4 * CONCURRENCY)
+                .withLatency(Duration.ofMillis(2), 0.5)
+                .withErrorRate(0.01)
+                .withThrottleRate(0.01, 0);
+        executor = Executors.newFixedThreadPool(CONCURRENCY);
+    }
+
+    @AfterAll
+    public static void stopUpstreams() {
+        executor.shutdownNow();
+        upstream.close();
+        unreliableUpstream.close();
+    }
+
+    @Test
+    public void blocking() throws Exception {
+        final HttpClient httpClient = HttpClient.create(USER_AGENT).enableCompression();
+        try {
+            runBlocking(httpClient, upstream, WARM_UP_REQUESTS);
+            checkBudgets(runBlocking(httpClient, upstream, REQUESTS));
+        } finally {
+            HttpClient.closeClient(httpClient.getClient());
+        }
+    }
+
+    @Test
+    public void async() throws Exception {
+        final HttpClient httpClient = HttpClient.create(USER_AGENT).enableCompression();
+        try {
+            runAsync(httpClient, WARM_UP_REQUESTS);
+            checkBudgets(runAsync(httpClient, REQUESTS));
+        } finally {
+            HttpClient.closeClient(httpClient.getClient());
+        }
+    }
+
+    @Test
+    public void retrying() throws Exception {
+        final RetryPolicy<Response> retryPolicy = new RetryPolicy<Response>()
+                .handleResultIf(response -> response.getStatus() == 429 || response.getStatus() >= 500)
+                .withDelay(Duration.ofMillis(1))
+                .withDelay((response, failure, context) -> retryAfter(response))
+                .withMaxRetries(5);
+        final FailSafeHttpClient httpClient = FailSafeHttpClient.create(HttpClient.newClient(), USER_AGENT, retryPolicy)
+                .enableCompression();
+        try {
+            runBlocking(httpClient, unreliableUpstream, WARM_UP_REQUESTS);
+            checkBudgets(runBlocking(httpClient, unreliableUpstream, REQUESTS).named("retrying"));
+        } finally {
+            HttpClient.closeClient(httpClient.getClient());
+        }
+    }
+
+    private static Result runBlocking(HttpClient httpClient, FakeUpstream upstream, int requests) throws Exception {
+        final Recorder recorder = new Recorder(3);
+        final AtomicInteger remaining = new AtomicInteger(requests);
+        final List<CompletableFuture<Void>> workers = new ArrayList<>(CONCURRENCY);
+        final long start = System.nanoTime();
+        for (int i = 0; i < CONCURRENCY; i++) {
+            workers.add(CompletableFuture.runAsync(() -> {
+                int n;
+                while ((n = remaining.getAndDecrement()) > 0) {
+                    final long requestStart = System.nanoTime();
+                    newRequest(httpClient, upstream, n).executeAndExpect(String.class);
+                    recorder.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - requestStart));
+                }
+            }, executor));
+        }
+        CompletableFuture.allOf(workers.toArray(new CompletableFuture[0])).get();
+        return new Result("blocking", requests, System.nanoTime() - start, recorder.getIntervalHistogram());
+    }
+
+    private static Result runAsync(HttpClient httpClient, int requests) throws Exception {
+        final Recorder recorder = new Recorder(3);
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        final Iterator<HttpGet> requestIterator = new Iterator<>() {
+            private int n;
+
+            @Override
+            public boolean hasNext() {
+                return n < requests;
+            }
+
+            @Override
+            public HttpGet next() {
+                return newRequest(httpClient, upstream, ++n)
+                        .withHeader(FakeUpstream.REQUEST_START, Long.toString(System.nanoTime()));
+            }
+        };
+        final long start = System.nanoTime();
+        httpClient.publisher(requestIterator, CONCURRENCY, executor).subscribe(new Flow.Subscriber<>() {
+            private Flow.Subscription subscription;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(CONCURRENCY);
+            }
+
+            @Override
+            public void onNext(Response response) {
+                try (response) {
+                    response.readEntity(String.class);
+                    final long requestStart = Long.parseLong(response.getHeaderString(FakeUpstream.REQUEST_START));
+                    recorder.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - requestStart));
+                }
+                subscription.request(1);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                done.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                done.complete(null);
+            }
+        });
+        done.get();
+        return new Result("async", requests, System.nanoTime() - start, recorder.getIntervalHistogram());
+    }
+
+    private static HttpGet newRequest(HttpClient httpClient, FakeUpstream upstream, int n) {
+        final HttpGet httpGet = new HttpGet(httpClient)
+                .withBaseUrl(upstream.getBaseUrl())
+                .withPathElements("resource");
+        // Mix uncompressed, gzip and brotli bodies
+        switch (n % 3) {
+            case 1:
+                return httpGet.withCompression(Decompressor.GZIP);
+            case 2:
+                return httpGet.withCompression(Decompressor.BR);
+            default:
+                return httpGet;
+        }
+    }
+
+    private static Duration retryAfter(Response response) {
+        final String retryAfter = response == null ? null : response.getHeaderString("Retry-After");
+        if (retryAfter == null) {
+            return null;
+        }
+        try {
+            return Duration.ofSeconds(Long.parseLong(retryAfter.trim()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static void checkBudgets(Result result) {
+        final double tolerance = Double.parseDouble(budget("tolerance"));
+        final double minThroughput = Double.parseDouble(budget(result.name + ".throughput")) * (1 - tolerance);
+        // The full result is part of each reason, so that a failing run shows all its measurements
+        assertThat(result + " throughput", result.getThroughput(), greaterThanOrEqualTo(minThroughput));
+        for (String percentile : List.of("p50", "p99", "p999")) {
+            final double maxMicros = Double.parseDouble(budget(result.name + "." + percentile + "Micros")) * (1 + tolerance);
+            assertThat(result + " " + percentile, (double) result.getPercentileMicros(percentile),
+                    lessThanOrEqualTo(maxMicros));
+        }
+    }
+
+    private static String budget(String name) {
+        final String value = System.getProperty("loadtest." + name, BASELINE.getProperty(name));
+        if (value == null) {
+            throw new IllegalStateException("No budget for " + name);
+        }
+        return value;
+    }
+
+    private static Properties readBaseline() {
+        final Properties baseline = new Properties();
+        try (InputStream in = LoadTest.class.getClassLoader().getResourceAsStream("load-test-baseline.properties")) {
+            if (in != null) {
+                baseline.load(in);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return baseline;
+    }
+
+    private static class Result {
+        private final String name;
+        private final int requests;
+        private final long elapsedNanos;
+        private final Histogram histogram;
+
+        Result(String name, int requests, long elapsedNanos, Histogram histogram) {
+            this.name = name;
+            this.requests = requests;
+            this.elapsedNanos = elapsedNanos;
+            this.histogram = histogram;
+        }
+
+        Result named(String name) {
+            return new Result(name, requests, elapsedNanos, histogram);
+        }
+
+        double getThroughput() {
+            return requests * 1e9 / elapsedNanos;
+        }
+
+        long getPercentileMicros(String percentile) {
+            switch (percentile) {
+                case "p50":
+                    return histogram.getValueAtPercentile(50);
+                case "p99":
+                    return histogram.getValueAtPercentile(99);
+                case "p999":
+                    return histogram.getValueAtPercentile(99.9);
+                default:
+                    throw new IllegalArgumentException(percentile);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d requests, %.0f requests/s, latency p50=%dus p99=%dus p999=%dus max=%dus",
+                    name, requests, getThroughput(), getPercentileMicros("p50"), getPercentileMicros("p99"),
+                    getPercentileMicros("p999"), histogram.getMaxValue());
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package dk.dbc.httpclient;
+
+import dk.dbc.commons.useragent.UserAgent;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class RequestTemplateTest {
+    private static final String PATH_TEMPLATE = "{id1}/test/{id2}/{id1}/test/{id2}";
+    private static final HttpClient HTTP_CLIENT = HttpClient.create(new UserAgent("RequestTemplateTest"));
+
+    @AfterAll
+    public static void closeClient() {
+        HttpClient.closeClient(HTTP_CLIENT.getClient());
+    }
+
+    @Test
+    public void buildPath_noValuesBound_returnsPathTemplateUnchanged() {
+        final RequestTemplate template = new RequestTemplate().withPathTemplate(PATH_TEMPLATE);
+        assertThat(template.buildPath(Map.of()), is(PATH_TEMPLATE.split(PathBuilder.PATH_SEPARATOR)));
+    }
+
+    @Test
+    public void buildPath_interpolatesLikePathBuilder() {
+        final PathBuilder pathBuilder = new PathBuilder(PATH_TEMPLATE)
+                .bind("id1", "/?val1")
+                .bind("id2", 42);
+        final RequestTemplate template = new RequestTemplate().withPathTemplate(PATH_TEMPLATE);
+        assertThat(template.buildPath(Map.of("id1", "/?val1", "id2", 42L)), is(pathBuilder.build()));
+    }
+
+    @Test
+    public void buildPath_multipleVariablesInSegment() {
+        final RequestTemplate template = new RequestTemplate().withPathTemplate("a/{x}-{y}.json");
+        assertThat(template.buildPath(Map.of("x", "1", "y", 2)), is(new String[] {"a", "1-2.json"}));
+    }
+
+    @Test
+    public void apply_isImmutableAndSpecialisedPerCall() {
+        final RequestTemplate base = new RequestTemplate()
+                .withBaseUrl("http://localhost")
+                .withPathTemplate("record/{id}")
+                .withHeader("Accept", "text/plain");
+        final RequestTemplate template = base
+                .withHeader("Accept", "application/json")
+                .withQueryParameter("format", "full");
+
+        final HttpGet httpGet = template.apply(new HttpGet(HTTP_CLIENT), Map.of("id", "42"));
+        assertThat(httpGet.getBaseUrl(), is("http://localhost"));
+        assertThat(httpGet.getPathElements(), is(new String[] {"record", "42"}));
+        assertThat(httpGet.getHeaders().get("Accept"), is("application/json"));
+        assertThat(httpGet.getQueryParameters().get("format"), is("full"));
+
+        final HttpGet other = base.apply(new HttpGet(HTTP_CLIENT), Map.of("id", "43"));
+        assertThat(other.getPathElements(), is(new String[] {"record", "43"}));
+        assertThat(other.getHeaders().get("Accept"), is("text/plain"));
+        assertThat(other.getQueryParameters().get("format"), is(nullValue()));
+    }
+}